@@ -31,13 +31,11 @@
  */
 package arkhados.net;
 
-import com.jme3.app.Application;
 import com.jme3.app.state.AbstractAppState;
-import com.jme3.app.state.AppStateManager;
-import com.jme3.network.HostedConnection;
 import java.util.ArrayList;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -53,53 +51,177 @@ public abstract class AbstractSender  extends AbstractAppState
     }
     private int otmIdCounter = 0;
     private boolean shouldSend;
-    private Application app;
+    private final RetransmissionScheduler retransmissionScheduler =
+            new RetransmissionScheduler();
+    private final UnreliableScheduler unreliableScheduler =
+            new UnreliableScheduler();
+    private volatile boolean deferred = false;
+    private NetworkTicker ticker;
+    private long tickNanos;
+    private static final ThreadLocal<OneTrueMessage> drainedAcks =
+            ThreadLocal.withInitial(OneTrueMessage::new);
+    private static final ThreadLocal<List<Command>> streamBatches =
+            ThreadLocal.withInitial(ArrayList::new);
+    private long retransmissionTimeout = 100;
+    private int maxSnapshotBaselineAge = 16;
+    private long maxAckDelay = 50;
+    private volatile long ackDeadline = Long.MAX_VALUE;
 
-    @Override
-    public void initialize(AppStateManager stateManager, Application app) {
-        super.initialize(stateManager, app);
-        this.app = app;
-    }
+    /**
+     * Builds next OneTrueMessage for state's connection. Messages of
+     * different connections may be built in parallel.
+     */
+    protected OneTrueMessage createOneTrueMessage(ConnectionState state) {
+        applyPendingAcks(state);
 
-    protected OneTrueMessage createOneTrueMessage(HostedConnection connection) {
-        List<OtmIdCommandListPair> unconfirmedGuaranteed =
-                getGuaranteedForSource(connection);
-        List<Command> enqueuedGuaranteed =
-                getEnqueuedGuaranteedForSource(connection);
-        List<Command> enqueuedUnreliables =
-                getEnqueuedUnreliablesForSource(connection);
+        List<Command> enqueuedGuaranteed = state.getEnqueuedGuaranteed();
 
         OneTrueMessage otm = new OneTrueMessage(otmIdCounter);
+        otm.setCompressionStats(state.getCompressionStats());
+        state.getOutgoingAcks().drainTo(otm, System.currentTimeMillis());
 
         if (!enqueuedGuaranteed.isEmpty()) {
-            unconfirmedGuaranteed.add(new OtmIdCommandListPair(otmIdCounter,
-                    new ArrayList<>(enqueuedGuaranteed)));
+            addGuaranteedBatches(state, enqueuedGuaranteed);
         }
 
-        if (!unconfirmedGuaranteed.isEmpty()) {
-            otm.getGuaranteed().addAll(unconfirmedGuaranteed);
+        long timeout = getRetransmissionTimeout(state);
+        for (int i = 0; i < ConnectionState.MAX_STREAMS; i++) {
+            GuaranteedRingBuffer unconfirmed =
+                    state.getUnconfirmedGuaranteed(i);
+            if (!unconfirmed.isEmpty()) {
+                retransmissionScheduler.schedule(unconfirmed,
+                        System.currentTimeMillis(), timeout,
+                        otm.getGuaranteed());
+            }
         }
-        if (!enqueuedUnreliables.isEmpty()) {
-            otm.getUnreliables().addAll(enqueuedUnreliables);
+        List<Command> unreliables = otm.getUnreliables();
+        if (unreliableScheduler.schedule(state, System.currentTimeMillis(),
+                getEncodingCache(), unreliables)) {
+            deferred = true;
+        }
+
+        boolean hasSnapshots = false;
+        for (int i = 0; i < unreliables.size(); i++) {
+            Command command = unreliables.get(i);
+            if (command instanceof SnapshotCommand) {
+                unreliables.set(i,
+                        encodeSnapshot(state, (SnapshotCommand) command));
+                hasSnapshots = true;
+            }
+        }
+
+        // Both guaranteed batches and snapshots are acknowledged
+        if (!otm.getGuaranteed().isEmpty() || hasSnapshots) {
+            state.getRttEstimator().onSend(otmIdCounter,
+                    System.currentTimeMillis());
         }
 
         enqueuedGuaranteed.clear();
-        enqueuedUnreliables.clear();
 
         return otm;
     }
 
-    private void confirmAllUntil(Object source, int until) {
-        List<OtmIdCommandListPair> listToRemoveFrom =
-                getGuaranteedForSource(source);
+    /**
+     * Splits enqueued commands into one batch per stream. Each batch is
+     * chained to the previous batch of its own stream so that receiver
+     * can deliver streams independently.
+     */
+    private void addGuaranteedBatches(ConnectionState state,
+            List<Command> enqueued) {
+        int streams = 0;
+        for (Command command : enqueued) {
+            streams |= 1 << ConnectionState.streamOf(command);
+        }
+
+        if (streams == 1) {
+            addGuaranteedBatch(state, 0, enqueued);
+            return;
+        }
+
+        List<Command> batch = streamBatches.get();
+        while (streams != 0) {
+            int streamId = Integer.numberOfTrailingZeros(streams);
+            streams &= streams - 1;
+
+            for (Command command : enqueued) {
+                if (ConnectionState.streamOf(command) == streamId) {
+                    batch.add(command);
+                }
+            }
+            addGuaranteedBatch(state, streamId, batch);
+            batch.clear();
+        }
+    }
+
+    private void addGuaranteedBatch(ConnectionState state, int streamId,
+            List<Command> commands) {
+        state.getUnconfirmedGuaranteed(streamId).add(otmIdCounter,
+                state.getLastGuaranteedOtmId(streamId), commands)
+                .setStreamId(streamId);
+        state.setLastGuaranteedOtmId(streamId, otmIdCounter);
+    }
+
+    /**
+     * @return cache of commands shared by several connections during this
+     * tick or null
+     */
+    protected CommandEncodingCache getEncodingCache() {
+        return null;
+    }
+
+    private void applyPendingAcks(ConnectionState state) {
+        OneTrueMessage drained = drainedAcks.get();
+        long now = System.currentTimeMillis();
+        if (!state.getPendingAcks().drainTo(drained, now)) {
+            return;
+        }
+
+        int streams = drained.getAckStreams();
+        while (streams != 0) {
+            int streamId = Integer.numberOfTrailingZeros(streams);
+            streams &= streams - 1;
+            state.getUnconfirmedGuaranteed(streamId).confirm(
+                    drained.getAckConfirmedOtmId(streamId),
+                    drained.getAckReceivedMask(streamId));
+        }
+        state.getRttEstimator().onAck(drained.getAckEchoOtmId(),
+                drained.getAckEchoMask(), now - drained.getAckDelay());
+        confirmSnapshots(state, drained.getAckSnapshotOtmId());
+    }
+
+    private SnapshotDelta encodeSnapshot(ConnectionState state,
+            SnapshotCommand snapshot) {
+        int key = snapshot.getKey();
+        float[] fields = snapshot.getFields();
+
+        Integer baselineOtmId = state.getSnapshotBaselines().get(key);
+        float[] baseline = null;
+        if (baselineOtmId != null) {
+            if (otmIdCounter - baselineOtmId <= maxSnapshotBaselineAge) {
+                baseline = state.getSentSnapshots().get(baselineOtmId, key);
+            } else {
+                state.getSnapshotBaselines().remove(key);
+            }
+        }
+
+        state.getSentSnapshots().put(otmIdCounter, key, fields);
+
+        return SnapshotDelta.encode(key, fields,
+                baseline != null ? baselineOtmId : SnapshotDelta.FULL,
+                baseline);
+    }
+
+    private void confirmSnapshots(ConnectionState state, int snapshotOtmId) {
+        Set<Integer> keys = state.getSentSnapshots().getKeys(snapshotOtmId);
+        if (keys == null) {
+            return;
+        }
 
-        for (Iterator<OtmIdCommandListPair> it = listToRemoveFrom.iterator();
-                it.hasNext();) {
-            OtmIdCommandListPair otmIdCommandListPair = it.next();
-            if (otmIdCommandListPair.getOtmId() <= until) {
-                it.remove();
-            } else if (otmIdCommandListPair.getOtmId() > until) {
-                break;
+        Map<Integer, Integer> baselines = state.getSnapshotBaselines();
+        for (Integer key : keys) {
+            Integer old = baselines.get(key);
+            if (old == null || old < snapshotOtmId) {
+                baselines.put(key, snapshotOtmId);
             }
         }
     }
@@ -108,15 +230,65 @@ public abstract class AbstractSender  extends AbstractAppState
     public void update(float tpf) {
         super.update(tpf);
 
-        if (!shouldSend) {
+        tickNanos = System.nanoTime();
+        // Several elapsed ticks still mean one message because everything
+        // enqueued fits into it
+        if (ticker != null && ticker.advance(tickNanos) == 0) {
             return;
         }
 
+        if (!shouldSend && System.currentTimeMillis() < ackDeadline) {
+            return;
+        }
+        ackDeadline = Long.MAX_VALUE;
+
+        deferred = false;
         sendMessage();
 
         ++otmIdCounter;
 
-        shouldSend = false;
+        // Unreliables that did not fit into budget and commands of
+        // connections that were not due go out on next tick
+        shouldSend = deferred;
+    }
+
+    /**
+     * @return true if state's connection should get message on this tick.
+     * Connections without their own tick rate get message on every tick.
+     */
+    protected boolean isDue(ConnectionState state) {
+        NetworkTicker connectionTicker = state.getTicker();
+        if (connectionTicker == null
+                || connectionTicker.advance(tickNanos) > 0) {
+            return true;
+        }
+
+        // Owed ack counts as something to send, because ackDeadline has
+        // already been spent on this tick
+        if (!state.getEnqueuedGuaranteed().isEmpty()
+                || !state.getEnqueuedUnreliables().isEmpty()
+                || state.getOutgoingAcks().isPending()) {
+            deferred = true;
+        }
+        return false;
+    }
+
+    /**
+     * @param tickRate how many times per second messages are sent at most.
+     * 0 means once per frame whenever there is something to send. Ticks
+     * missed because of a long frame are not caught up: they are merged
+     * into the one message sent on that frame.
+     */
+    public void setTickRate(float tickRate) {
+        ticker = tickRate > 0f ? new NetworkTicker(tickRate) : null;
+    }
+
+    /**
+     * @return ticker that limits send rate or null if messages are sent on
+     * every frame
+     */
+    public NetworkTicker getTicker() {
+        return ticker;
     }
 
     @Override
@@ -125,23 +297,79 @@ public abstract class AbstractSender  extends AbstractAppState
 
     @Override
     public void readUnreliable(final Object source, final Command unreliable) {
+        // Acks are carried in OneTrueMessage header. Ack Commands are still
+        // accepted from peers that send them.
         if (unreliable instanceof Ack) {
-            app.enqueue(() -> {
-                Ack ack = (Ack) unreliable;
-                confirmAllUntil(source, ack.getConfirmedOtmId());
-                return null;
-            });
+            // Applied to sender state when next message to source is built
+            ConnectionState state = getConnectionState(source);
+            if (state != null) {
+                state.getPendingAcks().merge((Ack) unreliable,
+                        System.currentTimeMillis());
+            }
+        }
+    }
+
+    @Override
+    public void requestAck() {
+        long deadline = System.currentTimeMillis() + maxAckDelay;
+        if (deadline < ackDeadline) {
+            ackDeadline = deadline;
         }
     }
 
-    protected abstract List<OtmIdCommandListPair> getGuaranteedForSource(
-            Object source);
+    /**
+     * @param maxAckDelay how many milliseconds acknowledgement may wait for
+     * other traffic before message is sent just for it
+     */
+    public void setMaxAckDelay(long maxAckDelay) {
+        this.maxAckDelay = maxAckDelay;
+    }
 
-    protected abstract List<Command> getEnqueuedGuaranteedForSource(
-            HostedConnection connection);
+    /**
+     * @return time in milliseconds after which unconfirmed guaranteed batch is
+     * sent again
+     */
+    protected long getRetransmissionTimeout(ConnectionState state) {
+        RttEstimator estimator = state.getRttEstimator();
+        if (!estimator.hasSample()) {
+            return retransmissionTimeout;
+        }
+
+        return Math.max(retransmissionTimeout,
+                (long) estimator.getRetransmissionTimeout());
+    }
+
+    /**
+     * @param retransmissionTimeout timeout in milliseconds that is used until
+     * round-trip time has been measured. It is also the lower limit of
+     * timeout.
+     */
+    public void setRetransmissionTimeout(long retransmissionTimeout) {
+        this.retransmissionTimeout = retransmissionTimeout;
+    }
 
-    protected abstract List<Command> getEnqueuedUnreliablesForSource(
-            HostedConnection connection);
+    /**
+     * @param maxSnapshotBaselineAge how many OneTrueMessages old snapshot
+     * baseline can be before full snapshot is sent instead of delta. Must be
+     * less than SnapshotHistory.SIZE.
+     */
+    public void setMaxSnapshotBaselineAge(int maxSnapshotBaselineAge) {
+        this.maxSnapshotBaselineAge = Math.min(maxSnapshotBaselineAge,
+                SnapshotHistory.SIZE - 1);
+    }
+
+    public RetransmissionScheduler getRetransmissionScheduler() {
+        return retransmissionScheduler;
+    }
+
+    public UnreliableScheduler getUnreliableScheduler() {
+        return unreliableScheduler;
+    }
+
+    @Override
+    public RttEstimator getRttEstimator(Object source) {
+        return getConnectionState(source).getRttEstimator();
+    }
 
     @Override
     public void setShouldSend(boolean shouldSend) {
@@ -33,14 +33,40 @@ package arkhados.net;
 
 import com.jme3.network.serializing.Serializable;
 
+/**
+ * Confirms guaranteed batches. Every batch up to and including confirmedOtmId
+ * has been received. In addition, bit i of receivedMask tells that batch
+ * confirmedOtmId + 1 + i has been received out of order. echoOtmId is the
+ * otmId of the OneTrueMessage that caused this Ack and it is used to measure
+ * round-trip time. snapshotOtmId is the otmId of the OneTrueMessage whose
+ * snapshots were received and can be used as delta baseline, or -1.
+ * <p>
+ * Acknowledgements travel in OneTrueMessage header. Sending Ack as Command
+ * is deprecated and only understood for compatibility with older peers.
+ */
 @Serializable
-public class Ack implements Command {
+public class Ack implements Command, Poolable {
     private int confirmedOtmId;
+    private long receivedMask;
+    private int echoOtmId = -1;
+    private int snapshotOtmId = -1;
 
     public Ack(int confirmedOtmId) {
         this.confirmedOtmId = confirmedOtmId;
     }
 
+    public Ack(int confirmedOtmId, long receivedMask, int echoOtmId) {
+        this.confirmedOtmId = confirmedOtmId;
+        this.receivedMask = receivedMask;
+        this.echoOtmId = echoOtmId;
+    }
+
+    public Ack(int confirmedOtmId, long receivedMask, int echoOtmId,
+            int snapshotOtmId) {
+        this(confirmedOtmId, receivedMask, echoOtmId);
+        this.snapshotOtmId = snapshotOtmId;
+    }
+
     public Ack() {
     }
 
@@ -49,6 +75,14 @@ public class Ack implements Command {
         return false;
     }
 
+    @Override
+    public void reset() {
+        confirmedOtmId = 0;
+        receivedMask = 0;
+        echoOtmId = -1;
+        snapshotOtmId = -1;
+    }
+
     public int getConfirmedOtmId() {
         return confirmedOtmId;
     }
@@ -56,4 +90,28 @@ public class Ack implements Command {
     public void setConfirmedOtmId(int confirmedOtmId) {
         this.confirmedOtmId = confirmedOtmId;
     }
+
+    public long getReceivedMask() {
+        return receivedMask;
+    }
+
+    public void setReceivedMask(long receivedMask) {
+        this.receivedMask = receivedMask;
+    }
+
+    public int getEchoOtmId() {
+        return echoOtmId;
+    }
+
+    public void setEchoOtmId(int echoOtmId) {
+        this.echoOtmId = echoOtmId;
+    }
+
+    public int getSnapshotOtmId() {
+        return snapshotOtmId;
+    }
+
+    public void setSnapshotOtmId(int snapshotOtmId) {
+        this.snapshotOtmId = snapshotOtmId;
+    }
 }
\ No newline at end of file
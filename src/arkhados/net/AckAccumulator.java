@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2009-2011 William Linna
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Arkhados' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package arkhados.net;
+
+/**
+ * Collects acknowledgements between two OneTrueMessages into one. Receiver
+ * merges what it owes to the other end here and the merged ack is written
+ * into header of the next outgoing message. Received acks are merged into
+ * another accumulator so that receiving thread does not need to hand each
+ * of them over to the game thread separately.
+ * <p>
+ * Guaranteed batches are confirmed separately for each stream. Merged ack
+ * confirms every batch that any of the merged acks confirmed. Newest echo
+ * is kept with a mask of older echoes merged into it, so that RttEstimator
+ * does not take them for lost probes. Only the newest snapshot otmId is kept.
+ */
+public class AckAccumulator {
+
+    private boolean pending = false;
+    private int streams = 0;
+    private final int[] confirmedOtmIds =
+            new int[ConnectionState.MAX_STREAMS];
+    private final long[] receivedMasks = new long[ConnectionState.MAX_STREAMS];
+    private int echoOtmId;
+    private long echoMask;
+    private long echoReceivedAt;
+    private int snapshotOtmId;
+
+    /**
+     * Merges Ack Command of older peer. It always concerns stream 0.
+     */
+    public synchronized void merge(Ack ack, long receivedAt) {
+        merge(ack.getEchoOtmId(), ack.getSnapshotOtmId(), receivedAt);
+        mergeStream(0, ack.getConfirmedOtmId(), ack.getReceivedMask());
+    }
+
+    /**
+     * Merges every part of header ack of otm
+     *
+     * @param receivedAt time when the acknowledged message was received on
+     * the other end
+     */
+    public synchronized void merge(OneTrueMessage otm, long receivedAt) {
+        merge(otm.getAckEchoOtmId(), otm.getAckSnapshotOtmId(), receivedAt);
+        mergeEchoes(otm.getAckEchoOtmId(), otm.getAckEchoMask());
+
+        int acked = otm.getAckStreams();
+        while (acked != 0) {
+            int streamId = Integer.numberOfTrailingZeros(acked);
+            acked &= acked - 1;
+            mergeStream(streamId, otm.getAckConfirmedOtmId(streamId),
+                    otm.getAckReceivedMask(streamId));
+        }
+    }
+
+    /**
+     * @param receivedAt time when message echoOtmId was received or when
+     * it was acknowledged, depending on direction
+     */
+    public synchronized void merge(int echo, int snapshot, long receivedAt) {
+        if (!pending) {
+            pending = true;
+            streams = 0;
+            echoOtmId = echo;
+            echoMask = 0;
+            echoReceivedAt = receivedAt;
+            snapshotOtmId = snapshot;
+            return;
+        }
+
+        if (echo > echoOtmId) {
+            echoReceivedAt = receivedAt;
+        }
+        mergeEchoes(echo, 0L);
+        snapshotOtmId = Math.max(snapshotOtmId, snapshot);
+    }
+
+    /**
+     * Adds echo and older echoes of its mask into echoOtmId and echoMask
+     */
+    private void mergeEchoes(int echo, long mask) {
+        // Bit j of these means top - j. Oldest bit of mask is lost.
+        long current = (echoMask << 1) | 1L;
+        long echoes = (mask << 1) | 1L;
+        if (echo > echoOtmId) {
+            current = shiftLeft(current, echo - echoOtmId);
+            echoOtmId = echo;
+        } else {
+            echoes = shiftLeft(echoes, echoOtmId - echo);
+        }
+        echoMask = (current | echoes) >>> 1;
+    }
+
+    private static long shiftLeft(long bits, int shift) {
+        return shift < Long.SIZE ? bits << shift : 0L;
+    }
+
+    /**
+     * Merges confirmation of stream's batches. merge(echo, snapshot,
+     * receivedAt) must be called first.
+     */
+    public synchronized void mergeStream(int streamId, int confirmed,
+            long mask) {
+        int bit = 1 << streamId;
+        if ((streams & bit) == 0) {
+            streams |= bit;
+            confirmedOtmIds[streamId] = confirmed;
+            receivedMasks[streamId] = mask;
+            return;
+        }
+
+        // Bit i of mask means confirmedOtmId + 1 + i so older mask is
+        // shifted by the difference of cumulative ids
+        int confirmedOtmId = confirmedOtmIds[streamId];
+        if (confirmed >= confirmedOtmId) {
+            int shift = confirmed - confirmedOtmId;
+            receivedMasks[streamId] = mask | (shift < Long.SIZE
+                    ? receivedMasks[streamId] >>> shift : 0L);
+            confirmedOtmIds[streamId] = confirmed;
+        } else {
+            int shift = confirmedOtmId - confirmed;
+            if (shift < Long.SIZE) {
+                receivedMasks[streamId] |= mask >>> shift;
+            }
+        }
+    }
+
+    /**
+     * Writes merged ack into header of out and forgets it.
+     *
+     * @return false if there was no pending ack
+     */
+    public synchronized boolean drainTo(OneTrueMessage out, long now) {
+        if (!pending) {
+            return false;
+        }
+        pending = false;
+
+        out.setAck(echoOtmId, snapshotOtmId,
+                (int) Math.max(0, now - echoReceivedAt));
+        out.setAckEchoMask(echoMask);
+        int acked = streams;
+        while (acked != 0) {
+            int streamId = Integer.numberOfTrailingZeros(acked);
+            acked &= acked - 1;
+            out.setStreamAck(streamId, confirmedOtmIds[streamId],
+                    receivedMasks[streamId]);
+        }
+        return true;
+    }
+
+    /**
+     * @return true if something has been merged since last drainTo
+     */
+    public synchronized boolean isPending() {
+        return pending;
+    }
+
+    public synchronized void clear() {
+        pending = false;
+        streams = 0;
+    }
+}
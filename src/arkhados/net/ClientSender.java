@@ -32,17 +32,11 @@
 package arkhados.net;
 
 import com.jme3.network.Client;
-import com.jme3.network.HostedConnection;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.logging.Level;
 
 public class ClientSender extends AbstractSender {
 
-    private final List<OtmIdCommandListPair> unconfirmedGuaranteed
-            = new ArrayList<>();
-    private final List<Command> enqueuedGuaranteed = new ArrayList<>();
-    private final List<Command> enqueuedUnreliables = new ArrayList<>();
+    private final ConnectionState state = new ConnectionState();
     private Client client;
 
     @Override
@@ -52,9 +46,11 @@ public class ClientSender extends AbstractSender {
         }
 
         if (command.isGuaranteed()) {
-            enqueuedGuaranteed.add(command);
+            // Invalid stream would otherwise fail every message later
+            ConnectionState.streamOf(command);
+            state.getEnqueuedGuaranteed().add(command);
         } else {
-            enqueuedUnreliables.add(command);
+            state.enqueueUnreliable(command);
         }
 
         setShouldSend(true);
@@ -66,7 +62,7 @@ public class ClientSender extends AbstractSender {
             return;
         }
 
-        OneTrueMessage otm = createOneTrueMessage(null);
+        OneTrueMessage otm = createOneTrueMessage(state);
         try {
             client.send(otm);
         } catch (Exception ex) {
@@ -85,18 +81,8 @@ public class ClientSender extends AbstractSender {
     }
 
     @Override
-    protected List<OtmIdCommandListPair> getGuaranteedForSource(Object source) {
-        return unconfirmedGuaranteed;
-    }
-
-    @Override
-    protected List<Command> getEnqueuedGuaranteedForSource(HostedConnection connection) {
-        return enqueuedGuaranteed;
-    }
-
-    @Override
-    protected List<Command> getEnqueuedUnreliablesForSource(HostedConnection connection) {
-        return enqueuedUnreliables;
+    public ConnectionState getConnectionState(Object source) {
+        return state;
     }
 
     public Client getClient() {
@@ -109,8 +95,6 @@ public class ClientSender extends AbstractSender {
 
     @Override
     public void reset() {
-        unconfirmedGuaranteed.clear();
-        enqueuedGuaranteed.clear();
-        enqueuedUnreliables.clear();
+        state.resetSender();
     }
 }
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2009-2011 William Linna
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Arkhados' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package arkhados.net;
+
+import com.jme3.network.serializing.Serializer;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Holds the encoded bytes of Commands that are sent to several connections
+ * during a single tick. The first OneTrueMessage that writes a shared Command
+ * serializes it normally and the resulting bytes are recorded here, every
+ * following OneTrueMessage just copies those bytes.
+ * <p>
+ * Cache is not thread-safe while it is being filled. When OneTrueMessages
+ * are written in parallel, encodeShared() must be called first, after which
+ * the cache is only read.
+ */
+public class CommandEncodingCache {
+
+    private static final int NOT_ENCODED = -1;
+    /**
+     * Largest command encodeShared encodes. Messages larger than
+     * MessageFragmenter's default maxMessageSize cannot be sent anyway.
+     */
+    private static final int MAX_SCRATCH_SIZE = 1 << 20;
+
+    private final Map<Command, Integer> fragments = new IdentityHashMap<>();
+    private byte[] arena = new byte[4096];
+    private int arenaSize = 0;
+    private int[] offsets = new int[64];
+    private int[] lengths = new int[64];
+    private int fragmentCount = 0;
+    private ByteBuffer scratch;
+
+    public void share(Command command) {
+        if (!fragments.containsKey(command)) {
+            fragments.put(command, NOT_ENCODED);
+        }
+    }
+
+    public boolean isShared(Command command) {
+        return fragments.containsKey(command);
+    }
+
+    /**
+     * Copies previously encoded bytes of command to target.
+     *
+     * @return false if command is not shared or has not been encoded yet
+     */
+    public boolean write(ByteBuffer target, Command command) {
+        Integer index = fragments.get(command);
+        if (index == null || index == NOT_ENCODED) {
+            return false;
+        }
+
+        target.put(arena, offsets[index], lengths[index]);
+        return true;
+    }
+
+    /**
+     * @return length of encoded command in bytes or -1 if command is not
+     * shared or has not been encoded yet
+     */
+    public int getEncodedSize(Command command) {
+        Integer index = fragments.get(command);
+        if (index == null || index == NOT_ENCODED) {
+            return -1;
+        }
+
+        return lengths[index];
+    }
+
+    /**
+     * Encodes every shared command that has not been encoded yet. Command
+     * too large to encode here stops being shared, so each OneTrueMessage
+     * serializes it like any other command.
+     */
+    public void encodeShared() throws IOException {
+        if (scratch == null) {
+            scratch = ByteBuffer.allocate(65536);
+        }
+
+        Iterator<Map.Entry<Command, Integer>> entries =
+                fragments.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<Command, Integer> entry = entries.next();
+            if (entry.getValue() != NOT_ENCODED) {
+                continue;
+            }
+            if (!encode(entry.getKey())) {
+                entries.remove();
+            }
+        }
+    }
+
+    /**
+     * @return false if command does not fit in MAX_SCRATCH_SIZE bytes
+     */
+    private boolean encode(Command command) throws IOException {
+        while (true) {
+            scratch.clear();
+            try {
+                Serializer.writeClassAndObject(scratch, command);
+                break;
+            } catch (BufferOverflowException ex) {
+                if (scratch.capacity() >= MAX_SCRATCH_SIZE) {
+                    return false;
+                }
+                scratch = ByteBuffer.allocate(scratch.capacity() * 2);
+            }
+        }
+
+        record(command, scratch, 0);
+        return true;
+    }
+
+    /**
+     * Records bytes [start, target.position()) of target as the encoding of
+     * command.
+     */
+    public void record(Command command, ByteBuffer target, int start) {
+        Integer index = fragments.get(command);
+        if (index == null || index != NOT_ENCODED) {
+            return;
+        }
+
+        int length = target.position() - start;
+        ensureCapacity(length);
+
+        ByteBuffer source = target.duplicate();
+        source.position(start);
+        source.get(arena, arenaSize, length);
+
+        offsets[fragmentCount] = arenaSize;
+        lengths[fragmentCount] = length;
+        arenaSize += length;
+        fragments.put(command, fragmentCount++);
+    }
+
+    private void ensureCapacity(int length) {
+        if (arenaSize + length > arena.length) {
+            byte[] newArena = new byte[Math.max(arena.length * 2,
+                    arenaSize + length)];
+            System.arraycopy(arena, 0, newArena, 0, arenaSize);
+            arena = newArena;
+        }
+
+        if (fragmentCount == offsets.length) {
+            int[] newOffsets = new int[offsets.length * 2];
+            int[] newLengths = new int[lengths.length * 2];
+            System.arraycopy(offsets, 0, newOffsets, 0, fragmentCount);
+            System.arraycopy(lengths, 0, newLengths, 0, fragmentCount);
+            offsets = newOffsets;
+            lengths = newLengths;
+        }
+    }
+
+    public void clear() {
+        fragments.clear();
+        arenaSize = 0;
+        fragmentCount = 0;
+    }
+}
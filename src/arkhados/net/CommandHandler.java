@@ -31,6 +31,15 @@
  */
 package arkhados.net;
 
+/**
+ * Receives commands that DefaultReceiver has decoded. Commands of one
+ * connection arrive in order and from one thread at a time.
+ * <p>
+ * If the server receives with several workers
+ * (UdpServer.setReceiveWorkers), commands of different connections are
+ * passed to every handler concurrently from several threads, so handlers
+ * must be thread safe or hand commands over to the game thread themselves.
+ */
 public interface CommandHandler {
     public void readGuaranteed(Object source, Command guaranteed);
     public void readUnreliable(Object source, Command unreliable);
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2009-2011 William Linna
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Arkhados' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package arkhados.net;
+
+import com.jme3.network.serializing.Serializer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps recycled instances of one Poolable class. Pools are registered
+ * with register(), which also registers the class with
+ * PooledCommandSerializer so that received commands are taken from the
+ * pool instead of being allocated.
+ */
+public class CommandPool<T extends Poolable> {
+
+    private static final Map<Class<?>, CommandPool<?>> pools =
+            new ConcurrentHashMap<>();
+
+    /**
+     * Creates pool for type and registers type to Serializer. Must be called
+     * on both client and server instead of Serializer.registerClass.
+     *
+     * @param capacity maximum number of free instances kept
+     */
+    public static <T extends Poolable> CommandPool<T> register(Class<T> type,
+            int capacity) {
+        CommandPool<T> pool = new CommandPool<>(type, capacity);
+        pools.put(type, pool);
+        Serializer.registerClass(type, new PooledCommandSerializer(pool));
+        return pool;
+    }
+
+    /**
+     * @return recycled or new instance of type. Works also when type has no
+     * pool.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends Poolable> T obtain(Class<T> type) {
+        CommandPool<T> pool = (CommandPool<T>) pools.get(type);
+        if (pool != null) {
+            return pool.obtain();
+        }
+
+        return newInstance(type);
+    }
+
+    /**
+     * Returns object to its pool if it is Poolable and its class has pool.
+     * Otherwise does nothing.
+     */
+    @SuppressWarnings("unchecked")
+    public static void recycle(Object object) {
+        if (!(object instanceof Poolable)) {
+            return;
+        }
+
+        CommandPool<Poolable> pool =
+                (CommandPool<Poolable>) pools.get(object.getClass());
+        if (pool != null) {
+            pool.free((Poolable) object);
+        }
+    }
+
+    private static <T> T newInstance(Class<T> type) {
+        try {
+            return type.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException("Cannot instantiate " + type
+                    + ". Poolable commands need public no-arg constructor",
+                    ex);
+        }
+    }
+
+    private final Class<T> type;
+    private final Object[] free;
+    private int size = 0;
+
+    private CommandPool(Class<T> type, int capacity) {
+        this.type = type;
+        free = new Object[capacity];
+    }
+
+    @SuppressWarnings("unchecked")
+    public synchronized T obtain() {
+        if (size == 0) {
+            return newInstance(type);
+        }
+
+        T object = (T) free[--size];
+        free[size] = null;
+        return object;
+    }
+
+    public synchronized void free(T object) {
+        object.reset();
+        if (size < free.length) {
+            free[size++] = object;
+        }
+    }
+
+    public Class<T> getType() {
+        return type;
+    }
+
+    public synchronized int getFreeCount() {
+        return size;
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2009-2011 William Linna
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Arkhados' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package arkhados.net;
+
+/**
+ * Decides when compressing OneTrueMessages of one connection pays off.
+ * Payloads shorter than threshold are never compressed. Whenever compression
+ * fails to save at least minSavings of a payload, threshold is raised above
+ * its length and next payloads are skipped, twice as many after each
+ * consecutive failure. Successful compressions lower threshold back towards
+ * minThreshold, so the threshold follows the traffic of the connection.
+ * <p>
+ * Used only by the thread that serializes messages of the connection.
+ */
+public class CompressionStats {
+
+    private static final int MAX_BACKOFF = 64;
+    private static final float RATIO_GAIN = 0.125f;
+
+    private int minThreshold = 128;
+    private int maxThreshold = 4096;
+    private float minSavings = 0.1f;
+
+    private int threshold = minThreshold;
+    private int skip = 0;
+    private int backoff = 1;
+    private float averageRatio = 1f;
+
+    private long attempts = 0;
+    private long compressedCount = 0;
+    private long bytesIn = 0;
+    private long bytesOut = 0;
+
+    public boolean shouldCompress(int length) {
+        if (length < threshold) {
+            return false;
+        }
+
+        if (skip > 0) {
+            --skip;
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @param compressedLength length after compression or -1 if compression
+     * did not make payload shorter
+     * @return true if compressed payload should be sent
+     */
+    public boolean record(int length, int compressedLength) {
+        ++attempts;
+        float ratio = compressedLength < 0 ? 1f
+                : compressedLength / (float) length;
+        averageRatio += (ratio - averageRatio) * RATIO_GAIN;
+
+        if (ratio > 1f - minSavings) {
+            threshold = Math.min(maxThreshold,
+                    Math.max(threshold, length + length / 2));
+            skip = backoff;
+            backoff = Math.min(backoff * 2, MAX_BACKOFF);
+            return false;
+        }
+
+        threshold = Math.max(minThreshold, threshold - threshold / 8);
+        backoff = 1;
+        ++compressedCount;
+        bytesIn += length;
+        bytesOut += compressedLength;
+        return true;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @param minThreshold shortest payload that is compressed
+     * @param maxThreshold highest value failures may raise threshold to
+     */
+    public void setThresholds(int minThreshold, int maxThreshold) {
+        this.minThreshold = minThreshold;
+        this.maxThreshold = Math.max(minThreshold, maxThreshold);
+        threshold = minThreshold;
+    }
+
+    /**
+     * @param minSavings fraction of payload that compression must save,
+     * from 0 to 1
+     */
+    public void setMinSavings(float minSavings) {
+        this.minSavings = minSavings;
+    }
+
+    /**
+     * @return moving average of compressed length / original length over
+     * attempts. Failed attempts count as 1.
+     */
+    public float getAverageRatio() {
+        return averageRatio;
+    }
+
+    public long getAttempts() {
+        return attempts;
+    }
+
+    public long getCompressedCount() {
+        return compressedCount;
+    }
+
+    /**
+     * @return bytes saved by compressed payloads, not counting headers
+     */
+    public long getBytesSaved() {
+        return bytesIn - bytesOut;
+    }
+}
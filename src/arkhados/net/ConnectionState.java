@@ -0,0 +1,380 @@
+/*
+ * Copyright (c) 2009-2011 William Linna
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Arkhados' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package arkhados.net;
+
+import com.jme3.network.HostedConnection;
+import com.jme3.network.Message;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Everything that sender, receiver and transport know about single
+ * connection. Server keeps these in ConnectionStates indexed by connection
+ * id so that each layer finds its data with one array load.
+ */
+public class ConnectionState {
+
+    /**
+     * Number of independent guaranteed streams
+     */
+    public static final int MAX_STREAMS = 8;
+
+    private final int id;
+    private final HostedConnection connection;
+
+    // Sender
+    private final GuaranteedRingBuffer[] unconfirmedGuaranteed =
+            new GuaranteedRingBuffer[MAX_STREAMS];
+    private final List<Command> enqueuedGuaranteed = new ArrayList<>();
+    private final List<Command> enqueuedUnreliables = new ArrayList<>();
+    private final Map<Class<?>, Map<Long, Integer>> coalescingIndices =
+            new HashMap<>();
+    private float[] unreliablePriorities = new float[16];
+    private int bytesPerSecond = 0;
+    private float bandwidthCredit = 0f;
+    private long lastCreditTime = -1;
+    private NetworkTicker ticker;
+    private final int[] lastGuaranteedOtmIds = new int[MAX_STREAMS];
+    private final RttEstimator rttEstimator = new RttEstimator();
+    private final AckAccumulator pendingAcks = new AckAccumulator();
+    private final AckAccumulator outgoingAcks = new AckAccumulator();
+    private final CompressionStats compressionStats = new CompressionStats();
+    private final SnapshotHistory sentSnapshots = new SnapshotHistory();
+    private final Map<Integer, Integer> snapshotBaselines = new HashMap<>();
+
+    // Receiver
+    private int lastReceivedOrderNum = -1;
+    private final ReceiveWindow[] receiveWindows =
+            new ReceiveWindow[MAX_STREAMS];
+    private final SnapshotHistory receivedSnapshots = new SnapshotHistory();
+
+    // Transport
+    private volatile int orderNum = -1;
+    private volatile int orderNumCounter = 0;
+    private final Queue<Message> forceQueue = new ConcurrentLinkedQueue<>();
+    private volatile long lastReceival = System.currentTimeMillis();
+
+    /**
+     * Creates state for client side where there is only one connection
+     */
+    public ConnectionState() {
+        this(-1, null);
+    }
+
+    public ConnectionState(int id, HostedConnection connection) {
+        this.id = id;
+        this.connection = connection;
+
+        for (int i = 0; i < MAX_STREAMS; i++) {
+            unconfirmedGuaranteed[i] = new GuaranteedRingBuffer();
+            receiveWindows[i] = new ReceiveWindow();
+        }
+        Arrays.fill(lastGuaranteedOtmIds, -1);
+    }
+
+    /**
+     * @return stream of guaranteed command
+     * @throws IllegalArgumentException if StreamedCommand has invalid stream
+     */
+    public static int streamOf(Command command) {
+        if (!(command instanceof StreamedCommand)) {
+            return 0;
+        }
+
+        int streamId = ((StreamedCommand) command).getStreamId();
+        if (streamId < 0 || streamId >= MAX_STREAMS) {
+            throw new IllegalArgumentException("Invalid stream " + streamId
+                    + " of " + command);
+        }
+        return streamId;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return connection this state belongs to or null on client side
+     */
+    public HostedConnection getConnection() {
+        return connection;
+    }
+
+    public GuaranteedRingBuffer getUnconfirmedGuaranteed(int streamId) {
+        return unconfirmedGuaranteed[streamId];
+    }
+
+    public List<Command> getEnqueuedGuaranteed() {
+        return enqueuedGuaranteed;
+    }
+
+    public List<Command> getEnqueuedUnreliables() {
+        return enqueuedUnreliables;
+    }
+
+    /**
+     * Adds unreliable command to be sent. CoalescingCommand replaces earlier
+     * enqueued command with the same class and key.
+     */
+    public void enqueueUnreliable(Command command) {
+        if (command instanceof CoalescingCommand) {
+            Map<Long, Integer> indices =
+                    coalescingIndices.get(command.getClass());
+            if (indices == null) {
+                indices = new HashMap<>();
+                coalescingIndices.put(command.getClass(), indices);
+            }
+
+            long key = ((CoalescingCommand) command).getCoalescingKey();
+            Integer index = indices.get(key);
+            if (index != null) {
+                enqueuedUnreliables.set(index, command);
+                return;
+            }
+            indices.put(key, enqueuedUnreliables.size());
+        }
+
+        int index = enqueuedUnreliables.size();
+        if (index == unreliablePriorities.length) {
+            unreliablePriorities =
+                    Arrays.copyOf(unreliablePriorities, index * 2);
+        }
+        unreliablePriorities[index] = 0f;
+        enqueuedUnreliables.add(command);
+    }
+
+    /**
+     * @return accumulated priorities of enqueued unreliables, in the same
+     * order. Replaced CoalescingCommand inherits priority of the old one.
+     */
+    public float[] getUnreliablePriorities() {
+        return unreliablePriorities;
+    }
+
+    /**
+     * Removes enqueued unreliables whose flag is set. Rest keep their order
+     * and accumulated priority.
+     */
+    public void removeUnreliables(boolean[] remove) {
+        int kept = 0;
+        for (int i = 0; i < enqueuedUnreliables.size(); i++) {
+            if (!remove[i]) {
+                enqueuedUnreliables.set(kept, enqueuedUnreliables.get(i));
+                unreliablePriorities[kept] = unreliablePriorities[i];
+                ++kept;
+            }
+        }
+        enqueuedUnreliables.subList(kept, enqueuedUnreliables.size()).clear();
+
+        for (Map<Long, Integer> indices : coalescingIndices.values()) {
+            indices.clear();
+        }
+        for (int i = 0; i < kept; i++) {
+            Command command = enqueuedUnreliables.get(i);
+            if (command instanceof CoalescingCommand) {
+                coalescingIndices.get(command.getClass()).put(
+                        ((CoalescingCommand) command).getCoalescingKey(), i);
+            }
+        }
+    }
+
+    public void clearEnqueuedUnreliables() {
+        enqueuedUnreliables.clear();
+        for (Map<Long, Integer> indices : coalescingIndices.values()) {
+            indices.clear();
+        }
+    }
+
+    public int getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * @param bytesPerSecond unreliable bandwidth budget of this connection.
+     * 0 means that UnreliableScheduler's default is used.
+     */
+    public void setBytesPerSecond(int bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public float getBandwidthCredit() {
+        return bandwidthCredit;
+    }
+
+    public void setBandwidthCredit(float bandwidthCredit) {
+        this.bandwidthCredit = bandwidthCredit;
+    }
+
+    public long getLastCreditTime() {
+        return lastCreditTime;
+    }
+
+    public void setLastCreditTime(long lastCreditTime) {
+        this.lastCreditTime = lastCreditTime;
+    }
+
+    /**
+     * @return ticker that overrides sender's tick rate for this connection or
+     * null
+     */
+    public NetworkTicker getTicker() {
+        return ticker;
+    }
+
+    /**
+     * @param ticker limits this connection to its own tick rate. Like
+     * AbstractSender.setTickRate, missed ticks are not caught up.
+     */
+    public void setTicker(NetworkTicker ticker) {
+        this.ticker = ticker;
+    }
+
+    /**
+     * @return otmId of the latest guaranteed batch of stream or -1
+     */
+    public int getLastGuaranteedOtmId(int streamId) {
+        return lastGuaranteedOtmIds[streamId];
+    }
+
+    public void setLastGuaranteedOtmId(int streamId,
+            int lastGuaranteedOtmId) {
+        lastGuaranteedOtmIds[streamId] = lastGuaranteedOtmId;
+    }
+
+    public RttEstimator getRttEstimator() {
+        return rttEstimator;
+    }
+
+    /**
+     * @return Acks that have been received but not yet applied to sender
+     * state. Safe to use from any thread.
+     */
+    public AckAccumulator getPendingAcks() {
+        return pendingAcks;
+    }
+
+    /**
+     * @return acknowledgements that are written into header of the next
+     * OneTrueMessage to this connection
+     */
+    public AckAccumulator getOutgoingAcks() {
+        return outgoingAcks;
+    }
+
+    public CompressionStats getCompressionStats() {
+        return compressionStats;
+    }
+
+    public SnapshotHistory getSentSnapshots() {
+        return sentSnapshots;
+    }
+
+    /**
+     * @return id of newest acknowledged OneTrueMessage for each snapshot key
+     */
+    public Map<Integer, Integer> getSnapshotBaselines() {
+        return snapshotBaselines;
+    }
+
+    public int getLastReceivedOrderNum() {
+        return lastReceivedOrderNum;
+    }
+
+    public void setLastReceivedOrderNum(int lastReceivedOrderNum) {
+        this.lastReceivedOrderNum = lastReceivedOrderNum;
+    }
+
+    public ReceiveWindow getReceiveWindow(int streamId) {
+        return receiveWindows[streamId];
+    }
+
+    public SnapshotHistory getReceivedSnapshots() {
+        return receivedSnapshots;
+    }
+
+    public int getOrderNum() {
+        return orderNum;
+    }
+
+    public void setOrderNum(int orderNum) {
+        this.orderNum = orderNum;
+    }
+
+    public int getOrderNumCounter() {
+        return orderNumCounter;
+    }
+
+    public void incrementOrderNumCounter() {
+        ++orderNumCounter;
+    }
+
+    public Queue<Message> getForceQueue() {
+        return forceQueue;
+    }
+
+    public long getLastReceival() {
+        return lastReceival;
+    }
+
+    public void setLastReceival(long lastReceival) {
+        this.lastReceival = lastReceival;
+    }
+
+    public void resetSender() {
+        for (GuaranteedRingBuffer ring : unconfirmedGuaranteed) {
+            ring.clear();
+        }
+        enqueuedGuaranteed.clear();
+        clearEnqueuedUnreliables();
+        bandwidthCredit = 0f;
+        lastCreditTime = -1;
+        Arrays.fill(lastGuaranteedOtmIds, -1);
+        rttEstimator.reset();
+        pendingAcks.clear();
+        sentSnapshots.clear();
+        snapshotBaselines.clear();
+    }
+
+    public void resetReceiver() {
+        lastReceivedOrderNum = -1;
+        for (ReceiveWindow window : receiveWindows) {
+            window.reset();
+        }
+        outgoingAcks.clear();
+        receivedSnapshots.clear();
+    }
+}
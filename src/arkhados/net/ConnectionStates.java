@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2009-2011 William Linna
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Arkhados' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package arkhados.net;
+
+import com.jme3.network.HostedConnection;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * ConnectionStates of server indexed by connection id. Connection ids are
+ * dense so plain array works better than hash map. Lookups do not lock.
+ */
+public class ConnectionStates {
+
+    private volatile AtomicReferenceArray<ConnectionState> states =
+            new AtomicReferenceArray<>(64);
+
+    /**
+     * @return state of connection with given id or null if there is no such
+     * connection
+     */
+    public ConnectionState get(int id) {
+        AtomicReferenceArray<ConnectionState> current = states;
+        if (id < 0 || id >= current.length()) {
+            return null;
+        }
+        return current.get(id);
+    }
+
+    /**
+     * @return state of connection or null if its id is free or has been
+     * given to another connection
+     */
+    public ConnectionState get(HostedConnection connection) {
+        ConnectionState state = get(connection.getId());
+        if (state == null || state.getConnection() != connection) {
+            return null;
+        }
+        return state;
+    }
+
+    /**
+     * Returns existing state of connection or creates new one. State left
+     * behind by earlier connection with the same id is replaced. Only the
+     * owner of the states, the transport or a ServerSender that has its
+     * own, may call this.
+     */
+    public synchronized ConnectionState create(HostedConnection connection) {
+        int id = connection.getId();
+        if (id >= states.length()) {
+            grow(id + 1);
+        }
+
+        ConnectionState state = states.get(id);
+        if (state == null || state.getConnection() != connection) {
+            state = new ConnectionState(id, connection);
+            states.set(id, state);
+        }
+        return state;
+    }
+
+    private void grow(int minCapacity) {
+        int capacity = states.length();
+        while (capacity < minCapacity) {
+            capacity <<= 1;
+        }
+
+        AtomicReferenceArray<ConnectionState> grown =
+                new AtomicReferenceArray<>(capacity);
+        for (int i = 0; i < states.length(); i++) {
+            grown.set(i, states.get(i));
+        }
+        states = grown;
+    }
+
+    /**
+     * Removes state of connection unless its id has already been given to
+     * another connection
+     *
+     * @return removed state or null
+     */
+    public synchronized ConnectionState remove(HostedConnection connection) {
+        ConnectionState state = get(connection);
+        if (state != null) {
+            states.set(connection.getId(), null);
+        }
+        return state;
+    }
+
+    /**
+     * @return upper bound for connection ids. Use with get(int) to iterate
+     * over all states.
+     */
+    public int capacity() {
+        return states.length();
+    }
+
+    public synchronized void clear() {
+        states = new AtomicReferenceArray<>(states.length());
+    }
+}
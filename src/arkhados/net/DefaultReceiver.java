@@ -37,9 +37,8 @@ import com.jme3.app.state.AppStateManager;
 import com.jme3.network.HostedConnection;
 import com.jme3.network.Message;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -51,11 +50,12 @@ public class DefaultReceiver extends AbstractAppState implements Receiver {
     static {
         logger.setLevel(Level.SEVERE);
     }
-    private final List<CommandHandler> handlers = new ArrayList<>();
+    // Messages of different connections may be received by several
+    // threads at once
+    private final List<CommandHandler> handlers = new CopyOnWriteArrayList<>();
     private Application app;
-    private int lastReceivedOrderNum = -1;
-    private final Map<HostedConnection, Integer> lastReceivedOrderNumMap =
-            new HashMap<>();
+    private static final ThreadLocal<List<OtmIdCommandListPair>> deliverables =
+            ThreadLocal.withInitial(ArrayList::new);
 
     @Override
     public void registerCommandHandler(CommandHandler handler) {
@@ -82,68 +82,97 @@ public class DefaultReceiver extends AbstractAppState implements Receiver {
         this.app = app;
     }
 
-    private void ack(Object source, int otmId) {
-        Ack ack = new Ack(otmId);
-        Sender sender = app.getStateManager().getState(Sender.class);
-        if (sender.isClient()) {
-            sender.addCommand(ack);
-        } else {
-            ((ServerSender) sender).addCommandForSingle(ack,
-                    (HostedConnection) source);
+    private Sender getSender() {
+        try {
+            // FIXME: NPE here
+            return app.getStateManager().getState(Sender.class);
+        } catch (NullPointerException ex) {
+            logger.log(Level.WARNING, "", ex);
+            throw ex;
         }
     }
 
+    private void ack(Sender sender, ConnectionState state, int streams,
+            int otmId, int snapshotOtmId) {
+        AckAccumulator acks = state.getOutgoingAcks();
+        synchronized (acks) {
+            acks.merge(otmId, snapshotOtmId, System.currentTimeMillis());
+            while (streams != 0) {
+                int streamId = Integer.numberOfTrailingZeros(streams);
+                streams &= streams - 1;
+                ReceiveWindow window = state.getReceiveWindow(streamId);
+                acks.mergeStream(streamId, window.getLastDeliveredOtmId(),
+                        window.getReceivedMask());
+            }
+        }
+        sender.requestAck();
+    }
+
     @Override
     public void messageReceived(Object source, Message m) {
         OneTrueMessage otp = (OneTrueMessage) m;
 
-        if (otp.getOrderNum() < getLastReceivedOrderNum(source)) {
+        Sender sender = getSender();
+        ConnectionState state = sender.getConnectionState(source);
+        if (state == null) {
             return;
         }
 
-        if (!otp.getGuaranteed().isEmpty()) {
-            handleGuaranteed(source, otp);
+        if (otp.hasAck()) {
+            // Time the ack spent waiting on the other end is not part of
+            // round-trip time
+            state.getPendingAcks().merge(otp,
+                    System.currentTimeMillis() - otp.getAckDelay());
         }
 
-        setLastReceivedOrderNum(source, otp.getOrderNum());
-
-        handleUnreliable(source, otp);
-    }
+        // Even outdated message may contain guaranteed batches that are
+        // still missing
+        int streams = 0;
+        if (!otp.getGuaranteed().isEmpty()) {
+            streams = handleGuaranteed(source, state, otp);
+        }
 
-    private int getLastReceivedOrderNum(Object source) {
+        // Snapshots of outdated messages are decoded too because the sender
+        // may use them as baseline
+        int snapshotOtmId = decodeSnapshots(state, otp)
+                ? otp.getOrderNum() : -1;
 
-        Sender sender;
-        try {
-            // FIXME: NPE here
-            sender = app.getStateManager().getState(Sender.class);
-        } catch (NullPointerException ex) {
-            logger.log(Level.WARNING, "", ex);
-            throw ex;
-        }
-        if (sender.isClient()) {
-            return lastReceivedOrderNum;
-        } else {
-            return lastReceivedOrderNumMap.get((HostedConnection) source);
+        if (streams != 0 || snapshotOtmId != -1) {
+            ack(sender, state, streams, otp.getOrderNum(), snapshotOtmId);
         }
-    }
 
-    private void setLastReceivedOrderNum(Object source, int num) {
-        Sender sender = app.getStateManager().getState(Sender.class);
-        if (sender.isClient()) {
-            lastReceivedOrderNum = num;
-        } else {
-            lastReceivedOrderNumMap.put((HostedConnection) source, num);
+        if (otp.getOrderNum() < state.getLastReceivedOrderNum()) {
+            recycleAll(otp.getUnreliables());
+            return;
         }
-    }
 
-    private void handleGuaranteed(Object source, OneTrueMessage otp) {
-        int lastReceivedOrderNumber = getLastReceivedOrderNum(source);
+        state.setLastReceivedOrderNum(otp.getOrderNum());
+
+        handleUnreliable(source, otp);
+    }
 
+    /**
+     * Delivers batches that became deliverable. Each stream has its own
+     * window so missing batch of one stream does not hold back the others.
+     *
+     * @return bit i is set if otp had batches of stream i
+     */
+    private int handleGuaranteed(Object source, ConnectionState state,
+            OneTrueMessage otp) {
+        List<OtmIdCommandListPair> deliverable = deliverables.get();
+        int streams = 0;
         for (OtmIdCommandListPair otmIdCommandListPair : otp.getGuaranteed()) {
-            if (otmIdCommandListPair.getOtmId() <= lastReceivedOrderNumber) {
+            int streamId = otmIdCommandListPair.getStreamId();
+            if (streamId < 0 || streamId >= ConnectionState.MAX_STREAMS) {
+                logger.log(Level.WARNING, "Invalid stream {0}", streamId);
                 continue;
             }
+            streams |= 1 << streamId;
+            state.getReceiveWindow(streamId).receive(otmIdCommandListPair,
+                    deliverable);
+        }
 
+        for (OtmIdCommandListPair otmIdCommandListPair : deliverable) {
             // TODO: Investigate why ConcurrentModificationException happens here so often
             // NOTE: It might have something / much to do with ACK
             // NOTE: Or perhaps handlers-list is being changed
@@ -152,9 +181,48 @@ public class DefaultReceiver extends AbstractAppState implements Receiver {
                     commandHandler.readGuaranteed(source, command);
                 }
             }
+            recycleAll(otmIdCommandListPair.getCommandList());
         }
 
-        ack(source, otp.getOrderNum());
+        deliverable.clear();
+        return streams;
+    }
+
+    /**
+     * Replaces SnapshotDeltas of otp with SnapshotCommands.
+     *
+     * @return true if otp contained snapshots and all of them could be
+     * decoded
+     */
+    private boolean decodeSnapshots(ConnectionState state,
+            OneTrueMessage otp) {
+        SnapshotHistory history = state.getReceivedSnapshots();
+        List<Command> unreliables = otp.getUnreliables();
+        boolean found = false;
+        boolean complete = true;
+
+        for (int i = 0; i < unreliables.size(); i++) {
+            if (!(unreliables.get(i) instanceof SnapshotDelta)) {
+                continue;
+            }
+            found = true;
+
+            SnapshotDelta delta = (SnapshotDelta) unreliables.get(i);
+            float[] fields = delta.decode(history.get(delta.getBaselineOtmId(),
+                    delta.getKey()));
+            if (fields == null) {
+                logger.log(Level.FINE, "Missing baseline {0} for snapshot {1}",
+                        new Object[]{delta.getBaselineOtmId(), delta.getKey()});
+                unreliables.remove(i--);
+                complete = false;
+                continue;
+            }
+
+            history.put(otp.getOrderNum(), delta.getKey(), fields);
+            unreliables.set(i, new SnapshotCommand(delta.getKey(), fields));
+        }
+
+        return found && complete;
     }
 
     private void handleUnreliable(Object source, OneTrueMessage otp) {
@@ -164,17 +232,38 @@ public class DefaultReceiver extends AbstractAppState implements Receiver {
                 commandHandler.readUnreliable(source, command);
             }
         }
+        recycleAll(otp.getUnreliables());
+    }
 
+    private static void recycleAll(List<Command> commands) {
+        for (Command command : commands) {
+            CommandPool.recycle(command);
+        }
     }
 
     @Override
     public void addConnection(HostedConnection connection) {
-        lastReceivedOrderNumMap.put(connection, -1);
+        ConnectionState state =
+                ((ServerSender) getSender()).attachState(connection);
+        if (state != null) {
+            state.resetReceiver();
+        }
     }
 
     @Override
     public void reset() {
-        lastReceivedOrderNumMap.clear();
-        lastReceivedOrderNum = -1;
+        Sender sender = getSender();
+        if (sender.isClient()) {
+            sender.getConnectionState(null).resetReceiver();
+            return;
+        }
+
+        ConnectionStates states = ((ServerSender) sender).getConnectionStates();
+        for (int i = 0; i < states.capacity(); i++) {
+            ConnectionState state = states.get(i);
+            if (state != null) {
+                state.resetReceiver();
+            }
+        }
     }
 }
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2009-2011 William Linna
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Arkhados' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package arkhados.net;
+
+import com.jme3.math.Vector3f;
+import com.jme3.network.HostedConnection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * InterestManager that divides xz-plane into square cells. Each viewer
+ * (connection) sees cells within viewRadius cells of its own cell. Every
+ * cell keeps a list of viewers that see it, and the lists are only updated
+ * when viewer moves to another cell, so finding interested connections
+ * costs one map lookup plus number of connections that actually see the
+ * position.
+ */
+public class GridInterestManager implements InterestManager {
+
+    private final float cellSize;
+    private final int viewRadius;
+    private final Map<Long, List<HostedConnection>> viewersByCell =
+            new HashMap<>();
+    private final Map<HostedConnection, Long> viewerCells = new HashMap<>();
+    private final Map<Integer, Long> entityCells = new HashMap<>();
+
+    /**
+     * @param cellSize width of one cell in world units
+     * @param viewRadius how many cells around its own cell viewer sees
+     */
+    public GridInterestManager(float cellSize, int viewRadius) {
+        if (cellSize <= 0f || viewRadius < 0) {
+            throw new IllegalArgumentException("cellSize must be positive"
+                    + " and viewRadius non-negative");
+        }
+        this.cellSize = cellSize;
+        this.viewRadius = viewRadius;
+    }
+
+    /**
+     * Tells where connection's point of view is, for example location of
+     * player's character.
+     */
+    public void setViewerPosition(HostedConnection connection,
+            Vector3f position) {
+        long cell = cellOf(position);
+        Long oldCell = viewerCells.put(connection, cell);
+        if (oldCell != null) {
+            if (oldCell == cell) {
+                return;
+            }
+            unsubscribe(connection, oldCell);
+        }
+        subscribe(connection, cell);
+    }
+
+    public void setEntityPosition(int entityId, Vector3f position) {
+        entityCells.put(entityId, cellOf(position));
+    }
+
+    public void removeEntity(int entityId) {
+        entityCells.remove(entityId);
+    }
+
+    @Override
+    public void getInterested(Vector3f position,
+            Collection<HostedConnection> out) {
+        addViewers(cellOf(position), out);
+    }
+
+    @Override
+    public void getInterestedInEntity(int entityId,
+            Collection<HostedConnection> out) {
+        Long cell = entityCells.get(entityId);
+        if (cell != null) {
+            addViewers(cell, out);
+        }
+    }
+
+    @Override
+    public void removeConnection(HostedConnection connection) {
+        Long cell = viewerCells.remove(connection);
+        if (cell != null) {
+            unsubscribe(connection, cell);
+        }
+    }
+
+    @Override
+    public void clear() {
+        viewersByCell.clear();
+        viewerCells.clear();
+        entityCells.clear();
+    }
+
+    private void addViewers(long cell, Collection<HostedConnection> out) {
+        List<HostedConnection> viewers = viewersByCell.get(cell);
+        if (viewers != null) {
+            out.addAll(viewers);
+        }
+    }
+
+    private void subscribe(HostedConnection connection, long center) {
+        int cx = cellX(center);
+        int cz = cellZ(center);
+        for (int x = cx - viewRadius; x <= cx + viewRadius; x++) {
+            for (int z = cz - viewRadius; z <= cz + viewRadius; z++) {
+                long cell = key(x, z);
+                List<HostedConnection> viewers = viewersByCell.get(cell);
+                if (viewers == null) {
+                    viewers = new ArrayList<>(4);
+                    viewersByCell.put(cell, viewers);
+                }
+                viewers.add(connection);
+            }
+        }
+    }
+
+    private void unsubscribe(HostedConnection connection, long center) {
+        int cx = cellX(center);
+        int cz = cellZ(center);
+        for (int x = cx - viewRadius; x <= cx + viewRadius; x++) {
+            for (int z = cz - viewRadius; z <= cz + viewRadius; z++) {
+                long cell = key(x, z);
+                List<HostedConnection> viewers = viewersByCell.get(cell);
+                if (viewers == null) {
+                    continue;
+                }
+                viewers.remove(connection);
+                if (viewers.isEmpty()) {
+                    viewersByCell.remove(cell);
+                }
+            }
+        }
+    }
+
+    private long cellOf(Vector3f position) {
+        return key((int) Math.floor(position.x / cellSize),
+                (int) Math.floor(position.z / cellSize));
+    }
+
+    private static long key(int x, int z) {
+        return ((long) x << 32) | (z & 0xFFFFFFFFL);
+    }
+
+    private static int cellX(long key) {
+        return (int) (key >> 32);
+    }
+
+    private static int cellZ(long key) {
+        return (int) key;
+    }
+
+    public float getCellSize() {
+        return cellSize;
+    }
+
+    public int getViewRadius() {
+        return viewRadius;
+    }
+}
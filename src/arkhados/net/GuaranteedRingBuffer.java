@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2009-2011 William Linna
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Arkhados' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package arkhados.net;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stores unconfirmed guaranteed batches of one connection. Batches are
+ * indexed by otmId modulo capacity and the slots, including their command
+ * lists, are reused so sending and confirming batches does not create
+ * garbage. Live batches are also linked together in otmId order so that
+ * iterating them does not have to visit empty slots.
+ */
+public class GuaranteedRingBuffer {
+
+    public static final int NONE = Integer.MIN_VALUE;
+
+    private OtmIdCommandListPair[] slots;
+    private boolean[] live;
+    private int[] nextIds;
+    private int[] previousIds;
+    private int mask;
+    private int firstOtmId = NONE;
+    private int lastOtmId = NONE;
+    private int size = 0;
+
+    public GuaranteedRingBuffer() {
+        this(64);
+    }
+
+    /**
+     * @param capacity initial capacity. Will be rounded up to power of two.
+     */
+    public GuaranteedRingBuffer(int capacity) {
+        allocate(Integer.highestOneBit(Math.max(capacity - 1, 1)) << 1);
+    }
+
+    private void allocate(int capacity) {
+        slots = new OtmIdCommandListPair[capacity];
+        live = new boolean[capacity];
+        nextIds = new int[capacity];
+        previousIds = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Adds new batch. otmId must be greater than otmId of any batch added
+     * before.
+     *
+     * @return the batch that now holds copy of commands
+     */
+    public OtmIdCommandListPair add(int otmId, int previousOtmId,
+            List<Command> commands) {
+        if (firstOtmId != NONE && otmId - firstOtmId > mask) {
+            grow(otmId - firstOtmId + 1);
+        }
+
+        int slot = otmId & mask;
+        OtmIdCommandListPair pair = slots[slot];
+        if (pair == null) {
+            pair = new OtmIdCommandListPair(otmId, previousOtmId,
+                    new ArrayList<>(commands.size()));
+            slots[slot] = pair;
+        } else {
+            pair.setOtmId(otmId);
+            pair.setPreviousOtmId(previousOtmId);
+            pair.setLastSentTime(-1);
+            pair.setEncodedSize(-1);
+        }
+        pair.getCommandList().addAll(commands);
+
+        live[slot] = true;
+        nextIds[slot] = NONE;
+        previousIds[slot] = lastOtmId;
+        if (lastOtmId != NONE) {
+            nextIds[lastOtmId & mask] = otmId;
+        } else {
+            firstOtmId = otmId;
+        }
+        lastOtmId = otmId;
+        ++size;
+
+        return pair;
+    }
+
+    private void grow(int span) {
+        OtmIdCommandListPair[] oldSlots = slots;
+        boolean[] oldLive = live;
+        int[] oldNextIds = nextIds;
+        int[] oldPreviousIds = previousIds;
+        int oldMask = mask;
+
+        int capacity = slots.length;
+        while (capacity < span) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+
+        for (int otmId = firstOtmId; otmId != NONE;
+                otmId = oldNextIds[otmId & oldMask]) {
+            int oldSlot = otmId & oldMask;
+            int slot = otmId & mask;
+            slots[slot] = oldSlots[oldSlot];
+            live[slot] = true;
+            nextIds[slot] = oldNextIds[oldSlot];
+            previousIds[slot] = oldPreviousIds[oldSlot];
+        }
+    }
+
+    /**
+     * @return batch with given otmId or null if there is no such batch
+     */
+    public OtmIdCommandListPair get(int otmId) {
+        int slot = otmId & mask;
+        if (!live[slot] || slots[slot].getOtmId() != otmId) {
+            return null;
+        }
+        return slots[slot];
+    }
+
+    /**
+     * @return otmId of oldest unconfirmed batch or NONE
+     */
+    public int getFirstOtmId() {
+        return firstOtmId;
+    }
+
+    /**
+     * @return otmId of next unconfirmed batch after otmId or NONE
+     */
+    public int getNextOtmId(int otmId) {
+        return nextIds[otmId & mask];
+    }
+
+    /**
+     * Removes every batch up to and including confirmed and batches
+     * confirmed + 1 + i for each bit i of receivedMask
+     */
+    public void confirm(int confirmed, long receivedMask) {
+        while (firstOtmId != NONE && firstOtmId <= confirmed) {
+            remove(firstOtmId);
+        }
+
+        long received = receivedMask;
+        while (received != 0) {
+            int offset = Long.numberOfTrailingZeros(received);
+            received &= received - 1;
+            if (get(confirmed + 1 + offset) != null) {
+                remove(confirmed + 1 + offset);
+            }
+        }
+    }
+
+    private void remove(int otmId) {
+        int slot = otmId & mask;
+        int next = nextIds[slot];
+        int previous = previousIds[slot];
+
+        if (previous != NONE) {
+            nextIds[previous & mask] = next;
+        } else {
+            firstOtmId = next;
+        }
+
+        if (next != NONE) {
+            previousIds[next & mask] = previous;
+        } else {
+            lastOtmId = previous;
+        }
+
+        live[slot] = false;
+        slots[slot].getCommandList().clear();
+        --size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        while (firstOtmId != NONE) {
+            remove(firstOtmId);
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2009-2011 William Linna
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Arkhados' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package arkhados.net;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Fast LZ77 compressor in the style of LZ4. Input is encoded as sequences of
+ * literals followed by a back reference to earlier data:
+ * <pre>
+ * token        literal length in high 4 bits, match length - 4 in low 4 bits
+ * [length]     extra literal length bytes if high bits are 15
+ * literals
+ * offset       2 bytes, little endian, omitted in the last sequence
+ * [length]     extra match length bytes if low bits are 15
+ * </pre>
+ * Extra length bytes are added up and continue while byte is 255.
+ * <p>
+ * Optional dictionary is treated as data that precedes every payload, so
+ * payloads can refer to it. Dictionary built from captured game traffic
+ * helps small payloads most, as they have little history of their own.
+ */
+public class LzPayloadCompressor implements PayloadCompressor {
+
+    private static final int MIN_MATCH = 4;
+    private static final int HASH_BITS = 12;
+    private static final int MAX_OFFSET = 0xFFFF;
+
+    private static final ThreadLocal<int[]> hashTables =
+            ThreadLocal.withInitial(() -> new int[1 << HASH_BITS]);
+    private static final ThreadLocal<byte[][]> windows =
+            ThreadLocal.withInitial(() -> new byte[1][]);
+
+    private final byte[] dictionary;
+
+    public LzPayloadCompressor() {
+        this(null);
+    }
+
+    /**
+     * @param dictionary data that payloads are likely to share. Only last
+     * 64 KiB are used.
+     */
+    public LzPayloadCompressor(byte[] dictionary) {
+        if (dictionary == null) {
+            this.dictionary = new byte[0];
+        } else {
+            int length = Math.min(dictionary.length, MAX_OFFSET);
+            this.dictionary = Arrays.copyOfRange(dictionary,
+                    dictionary.length - length, dictionary.length);
+        }
+    }
+
+    @Override
+    public int compress(byte[] src, int srcOffset, int length, byte[] dst,
+            int dstOffset, int maxLength) {
+        int base = dictionary.length;
+        int end = base + length;
+        byte[] window = getWindow(end);
+        System.arraycopy(dictionary, 0, window, 0, base);
+        System.arraycopy(src, srcOffset, window, base, length);
+
+        int[] table = hashTables.get();
+        Arrays.fill(table, -1);
+        for (int i = 0; i + MIN_MATCH <= base; i++) {
+            table[hash(window, i)] = i;
+        }
+
+        int out = dstOffset;
+        int limit = dstOffset + maxLength;
+        int anchor = base;
+        int position = base;
+        while (position + MIN_MATCH <= end) {
+            int h = hash(window, position);
+            int candidate = table[h];
+            table[h] = position;
+
+            if (candidate < 0 || position - candidate > MAX_OFFSET
+                    || !matches(window, candidate, position)) {
+                ++position;
+                continue;
+            }
+
+            int matchLength = MIN_MATCH;
+            while (position + matchLength < end && window[candidate
+                    + matchLength] == window[position + matchLength]) {
+                ++matchLength;
+            }
+
+            out = writeSequence(window, anchor, position - anchor,
+                    position - candidate, matchLength, dst, out, limit);
+            if (out < 0) {
+                return -1;
+            }
+
+            position += matchLength;
+            anchor = position;
+        }
+
+        out = writeSequence(window, anchor, end - anchor, 0, 0, dst, out,
+                limit);
+        return out < 0 ? -1 : out - dstOffset;
+    }
+
+    @Override
+    public void decompress(byte[] src, int srcOffset, int length, byte[] dst,
+            int dstOffset, int originalLength) throws IOException {
+        int base = dictionary.length;
+        int end = base + originalLength;
+        byte[] window = getWindow(end);
+        System.arraycopy(dictionary, 0, window, 0, base);
+
+        int in = srcOffset;
+        int inEnd = srcOffset + length;
+        int out = base;
+        try {
+            while (true) {
+                int token = src[in++] & 0xFF;
+
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[in++] & 0xFF;
+                        literals += b;
+                    } while (b == 255);
+                }
+                if (out + literals > end || in + literals > inEnd) {
+                    throw new IOException("Corrupt compressed payload");
+                }
+                System.arraycopy(src, in, window, out, literals);
+                in += literals;
+                out += literals;
+
+                if (in == inEnd) {
+                    break;
+                }
+
+                int offset = (src[in++] & 0xFF) | (src[in++] & 0xFF) << 8;
+                int matchLength = token & 0xF;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = src[in++] & 0xFF;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+
+                int from = out - offset;
+                if (offset == 0 || from < 0 || out + matchLength > end) {
+                    throw new IOException("Corrupt compressed payload");
+                }
+                // Byte by byte, because match may overlap itself
+                for (int i = 0; i < matchLength; i++) {
+                    window[out++] = window[from++];
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            throw new IOException("Corrupt compressed payload", ex);
+        }
+
+        if (out != end) {
+            throw new IOException("Compressed payload has wrong length");
+        }
+        System.arraycopy(window, base, dst, dstOffset, originalLength);
+    }
+
+    /**
+     * @return out after the sequence or -1 if it does not fit before limit
+     */
+    private static int writeSequence(byte[] window, int literalStart,
+            int literals, int offset, int matchLength, byte[] dst, int out,
+            int limit) {
+        int extraMatch = matchLength - MIN_MATCH;
+        // Token, both lengths at worst and offset
+        if (out + 1 + literals + literals / 255 + 1 + 2
+                + Math.max(extraMatch, 0) / 255 + 1 > limit) {
+            return -1;
+        }
+
+        int token = Math.min(literals, 15) << 4;
+        if (matchLength > 0) {
+            token |= Math.min(extraMatch, 15);
+        }
+        dst[out++] = (byte) token;
+        if (literals >= 15) {
+            out = writeLength(literals - 15, dst, out);
+        }
+
+        System.arraycopy(window, literalStart, dst, out, literals);
+        out += literals;
+
+        if (matchLength > 0) {
+            dst[out++] = (byte) offset;
+            dst[out++] = (byte) (offset >>> 8);
+            if (extraMatch >= 15) {
+                out = writeLength(extraMatch - 15, dst, out);
+            }
+        }
+        return out;
+    }
+
+    private static int writeLength(int length, byte[] dst, int out) {
+        while (length >= 255) {
+            dst[out++] = (byte) 255;
+            length -= 255;
+        }
+        dst[out++] = (byte) length;
+        return out;
+    }
+
+    private static boolean matches(byte[] window, int a, int b) {
+        return window[a] == window[b] && window[a + 1] == window[b + 1]
+                && window[a + 2] == window[b + 2]
+                && window[a + 3] == window[b + 3];
+    }
+
+    private static int hash(byte[] window, int i) {
+        int value = (window[i] & 0xFF) | (window[i + 1] & 0xFF) << 8
+                | (window[i + 2] & 0xFF) << 16 | (window[i + 3] & 0xFF) << 24;
+        return (value * -1640531535) >>> (32 - HASH_BITS);
+    }
+
+    private static byte[] getWindow(int length) {
+        byte[][] holder = windows.get();
+        if (holder[0] == null || holder[0].length < length) {
+            holder[0] = new byte[Math.max(length, 4096)];
+        }
+        return holder[0];
+    }
+
+    public byte[] getDictionary() {
+        return dictionary.clone();
+    }
+}
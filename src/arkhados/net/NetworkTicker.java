@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2009-2011 William Linna
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Arkhados' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package arkhados.net;
+
+/**
+ * Fixed-rate clock for network ticks. Time is measured with System.nanoTime
+ * instead of frame time, and leftover time is accumulated so that average
+ * rate stays at tickRate even when frames do not line up with ticks.
+ */
+public class NetworkTicker {
+
+    private final float tickRate;
+    private final long interval;
+    private long lastNanos = -1;
+    private long accumulated = 0;
+
+    /**
+     * @param tickRate ticks per second
+     */
+    public NetworkTicker(float tickRate) {
+        if (tickRate <= 0f) {
+            throw new IllegalArgumentException("tickRate must be positive");
+        }
+        this.tickRate = tickRate;
+        interval = (long) (1000000000.0 / tickRate);
+    }
+
+    /**
+     * @return number of ticks that have passed since previous call. First
+     * call always returns 1. Senders only check whether it is positive, so
+     * ticks missed during a long frame are not caught up.
+     */
+    public int advance(long nowNanos) {
+        if (lastNanos == -1) {
+            lastNanos = nowNanos;
+            return 1;
+        }
+
+        accumulated += nowNanos - lastNanos;
+        lastNanos = nowNanos;
+        if (accumulated < interval) {
+            return 0;
+        }
+
+        long ticks = accumulated / interval;
+        accumulated -= ticks * interval;
+        return (int) Math.min(ticks, Integer.MAX_VALUE);
+    }
+
+    public void reset() {
+        lastNanos = -1;
+        accumulated = 0;
+    }
+
+    public float getTickRate() {
+        return tickRate;
+    }
+}
@@ -42,6 +42,16 @@ public class OneTrueMessage extends AbstractMessage {
 
     private List<OtmIdCommandListPair> guaranteed = new ArrayList<>();
     private List<Command> unreliables = new ArrayList<>();
+    private boolean hasAck = false;
+    private int ackStreams = 0;
+    private int[] ackConfirmedOtmIds;
+    private long[] ackReceivedMasks;
+    private int ackEchoOtmId = -1;
+    private long ackEchoMask = 0;
+    private int ackSnapshotOtmId = -1;
+    private int ackDelay;
+    private transient CommandEncodingCache encodingCache;
+    private transient CompressionStats compressionStats;
     
     public OneTrueMessage() {
     }
@@ -66,4 +76,100 @@ public class OneTrueMessage extends AbstractMessage {
     public void setOrderNum(int orderNum) {
         this.orderNum = orderNum;
     }
+
+    /**
+     * Piggybacks acknowledgement on this message. Fields have the same
+     * meaning as in Ack. Guaranteed batches are confirmed separately for each
+     * stream with setStreamAck.
+     *
+     * @param ackDelay milliseconds between receiving echoed message and
+     * sending this one. Sender subtracts it from round-trip time.
+     */
+    public void setAck(int echoOtmId, int snapshotOtmId, int ackDelay) {
+        hasAck = true;
+        ackStreams = 0;
+        ackEchoOtmId = echoOtmId;
+        ackEchoMask = 0;
+        ackSnapshotOtmId = snapshotOtmId;
+        this.ackDelay = ackDelay;
+    }
+
+    /**
+     * Echoes older messages that were acknowledged together with
+     * echoOtmId. setAck must be called first.
+     *
+     * @param echoMask bit i means that echoOtmId - 1 - i was received
+     */
+    public void setAckEchoMask(long echoMask) {
+        ackEchoMask = echoMask;
+    }
+
+    /**
+     * Confirms guaranteed batches of stream. setAck must be called first.
+     */
+    public void setStreamAck(int streamId, int confirmedOtmId,
+            long receivedMask) {
+        if (ackConfirmedOtmIds == null) {
+            ackConfirmedOtmIds = new int[ConnectionState.MAX_STREAMS];
+            ackReceivedMasks = new long[ConnectionState.MAX_STREAMS];
+        }
+        ackStreams |= 1 << streamId;
+        ackConfirmedOtmIds[streamId] = confirmedOtmId;
+        ackReceivedMasks[streamId] = receivedMask;
+    }
+
+    public boolean hasAck() {
+        return hasAck;
+    }
+
+    /**
+     * @return bit i is set if stream i is acknowledged
+     */
+    public int getAckStreams() {
+        return ackStreams;
+    }
+
+    public int getAckConfirmedOtmId(int streamId) {
+        return ackConfirmedOtmIds[streamId];
+    }
+
+    public long getAckReceivedMask(int streamId) {
+        return ackReceivedMasks[streamId];
+    }
+
+    public int getAckEchoOtmId() {
+        return ackEchoOtmId;
+    }
+
+    public long getAckEchoMask() {
+        return ackEchoMask;
+    }
+
+    public int getAckSnapshotOtmId() {
+        return ackSnapshotOtmId;
+    }
+
+    public int getAckDelay() {
+        return ackDelay;
+    }
+
+    public CommandEncodingCache getEncodingCache() {
+        return encodingCache;
+    }
+
+    public void setEncodingCache(CommandEncodingCache encodingCache) {
+        this.encodingCache = encodingCache;
+    }
+
+    /**
+     * @return stats of receiving connection or null if payload must not be
+     * compressed
+     */
+    public CompressionStats getCompressionStats() {
+        return compressionStats;
+    }
+
+    public void setCompressionStats(CompressionStats compressionStats) {
+        this.compressionStats = compressionStats;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,270 @@
+/*
+ * Copyright (c) 2009-2011 William Linna
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Arkhados' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package arkhados.net;
+
+import com.jme3.network.serializing.Serializer;
+import com.jme3.network.serializing.SerializerException;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes OneTrueMessages without reflection so that Commands shared between
+ * connections can be spliced in from CommandEncodingCache instead of being
+ * serialized again for each connection.
+ */
+public class OneTrueMessageSerializer extends Serializer {
+
+    private static final int FLAG_ACK = 1;
+    private static final int FLAG_COMPRESSED = 2;
+    private static final int MAX_ACK_DELAY = 0xFFFF;
+    private static final int MAX_MEASURE_SIZE = 1 << 26;
+
+    private static final ThreadLocal<ByteBuffer> measureBuffer =
+            new ThreadLocal<>();
+
+    private final PayloadCompressor compressor;
+
+    /**
+     * Registers OneTrueMessage with this serializer. Both client and server
+     * must call this instead of Serializer.registerClass(OneTrueMessage.class)
+     */
+    public static void register() {
+        register(null);
+    }
+
+    /**
+     * Registers OneTrueMessage with this serializer that compresses payloads
+     * with compressor when CompressionStats of the message allow it. Both
+     * client and server must use equal compressor.
+     */
+    public static void register(PayloadCompressor compressor) {
+        Serializer.registerClass(OneTrueMessage.class,
+                new OneTrueMessageSerializer(compressor));
+    }
+
+    public OneTrueMessageSerializer() {
+        this(null);
+    }
+
+    public OneTrueMessageSerializer(PayloadCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    /**
+     * @return number of bytes pair takes when written into OneTrueMessage
+     */
+    public static int measure(OtmIdCommandListPair pair) throws IOException {
+        ByteBuffer buffer = getMeasureBuffer();
+        while (true) {
+            try {
+                writePair(buffer, pair, null);
+                return buffer.position();
+            } catch (BufferOverflowException ex) {
+                buffer = growMeasureBuffer(buffer);
+            }
+        }
+    }
+
+    /**
+     * @return number of bytes command takes when written into OneTrueMessage
+     */
+    public static int measure(Command command) throws IOException {
+        ByteBuffer buffer = getMeasureBuffer();
+        while (true) {
+            try {
+                writeCommand(buffer, command, null);
+                return buffer.position();
+            } catch (BufferOverflowException ex) {
+                buffer = growMeasureBuffer(buffer);
+            }
+        }
+    }
+
+    private static ByteBuffer getMeasureBuffer() {
+        ByteBuffer buffer = measureBuffer.get();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocate(65536);
+            measureBuffer.set(buffer);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Batches may be larger than one datagram since they can be fragmented,
+     * so measure buffer grows instead of letting overflow escape to sender.
+     */
+    private static ByteBuffer growMeasureBuffer(ByteBuffer buffer)
+            throws SerializerException {
+        if (buffer.capacity() >= MAX_MEASURE_SIZE) {
+            throw new SerializerException("Cannot measure more than "
+                    + MAX_MEASURE_SIZE + " bytes");
+        }
+
+        buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+        measureBuffer.set(buffer);
+        return buffer;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> T readObject(ByteBuffer data, Class<T> c) throws IOException {
+        OneTrueMessage otm = new OneTrueMessage(data.getInt());
+
+        int flags = data.get();
+        if ((flags & FLAG_ACK) != 0) {
+            int echoOtmId = data.getInt();
+            int snapshotOtmId = data.getInt();
+            int ackDelay = data.getShort() & MAX_ACK_DELAY;
+            otm.setAck(echoOtmId, snapshotOtmId, ackDelay);
+            otm.setAckEchoMask(data.getLong());
+
+            int streams = data.get() & 0xFF;
+            while (streams != 0) {
+                int streamId = Integer.numberOfTrailingZeros(streams);
+                streams &= streams - 1;
+                otm.setStreamAck(streamId, data.getInt(), data.getLong());
+            }
+        }
+
+        if ((flags & FLAG_COMPRESSED) != 0) {
+            data = PayloadCompression.decompress(data, compressor);
+        }
+
+        int guaranteedCount = data.getInt();
+        for (int i = 0; i < guaranteedCount; i++) {
+            int otmId = data.getInt();
+            int previousOtmId = data.getInt();
+            int streamId = data.get();
+            OtmIdCommandListPair pair = new OtmIdCommandListPair(otmId,
+                    previousOtmId, readCommands(data));
+            pair.setStreamId(streamId);
+            otm.getGuaranteed().add(pair);
+        }
+
+        otm.getUnreliables().addAll(readCommands(data));
+
+        return (T) otm;
+    }
+
+    @Override
+    public void writeObject(ByteBuffer buffer, Object object)
+            throws IOException {
+        OneTrueMessage otm = (OneTrueMessage) object;
+        CommandEncodingCache cache = otm.getEncodingCache();
+
+        buffer.putInt(otm.getOrderNum());
+
+        int flagsPosition = buffer.position();
+        int flags = otm.hasAck() ? FLAG_ACK : 0;
+        buffer.put((byte) flags);
+        if (otm.hasAck()) {
+            buffer.putInt(otm.getAckEchoOtmId());
+            buffer.putInt(otm.getAckSnapshotOtmId());
+            buffer.putShort((short) Math.min(otm.getAckDelay(),
+                    MAX_ACK_DELAY));
+            buffer.putLong(otm.getAckEchoMask());
+
+            int streams = otm.getAckStreams();
+            buffer.put((byte) streams);
+            while (streams != 0) {
+                int streamId = Integer.numberOfTrailingZeros(streams);
+                streams &= streams - 1;
+                buffer.putInt(otm.getAckConfirmedOtmId(streamId));
+                buffer.putLong(otm.getAckReceivedMask(streamId));
+            }
+        }
+
+        int payloadStart = buffer.position();
+        List<OtmIdCommandListPair> guaranteed = otm.getGuaranteed();
+        buffer.putInt(guaranteed.size());
+        for (OtmIdCommandListPair pair : guaranteed) {
+            writePair(buffer, pair, cache);
+        }
+
+        writeCommands(buffer, otm.getUnreliables(), cache);
+
+        if (PayloadCompression.compress(buffer, payloadStart, compressor,
+                otm.getCompressionStats())) {
+            buffer.put(flagsPosition, (byte) (flags | FLAG_COMPRESSED));
+        }
+    }
+
+    private static void writePair(ByteBuffer buffer, OtmIdCommandListPair pair,
+            CommandEncodingCache cache) throws IOException {
+        buffer.putInt(pair.getOtmId());
+        buffer.putInt(pair.getPreviousOtmId());
+        buffer.put((byte) pair.getStreamId());
+        writeCommands(buffer, pair.getCommandList(), cache);
+    }
+
+    private List<Command> readCommands(ByteBuffer data) throws IOException {
+        int size = data.getInt();
+        // Count comes from the wire. Every command takes at least one byte,
+        // so larger counts are malformed and must not size the list.
+        if (size < 0 || size > data.remaining()) {
+            throw new SerializerException("Invalid command count " + size);
+        }
+        List<Command> commands = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            commands.add((Command) Serializer.readClassAndObject(data));
+        }
+        return commands;
+    }
+
+    private static void writeCommands(ByteBuffer buffer, List<Command> commands,
+            CommandEncodingCache cache) throws IOException {
+        buffer.putInt(commands.size());
+        for (Command command : commands) {
+            writeCommand(buffer, command, cache);
+        }
+    }
+
+    private static void writeCommand(ByteBuffer buffer, Command command,
+            CommandEncodingCache cache) throws IOException {
+        if (cache == null) {
+            Serializer.writeClassAndObject(buffer, command);
+            return;
+        }
+
+        if (cache.write(buffer, command)) {
+            return;
+        }
+
+        int start = buffer.position();
+        Serializer.writeClassAndObject(buffer, command);
+        cache.record(command, buffer, start);
+    }
+}
@@ -37,13 +37,19 @@ import java.util.List;
 @Serializable
 public class OtmIdCommandListPair {
     private int otmId;
+    private int previousOtmId;
+    private int streamId;
     private List<Command> commandList;
+    private transient long lastSentTime = -1;
+    private transient int encodedSize = -1;
 
     public OtmIdCommandListPair() {
     }
 
-    public OtmIdCommandListPair(int otmId, List<Command> commandList) {
+    public OtmIdCommandListPair(int otmId, int previousOtmId,
+            List<Command> commandList) {
         this.otmId = otmId;
+        this.previousOtmId = previousOtmId;
         this.commandList = commandList;
     }
 
@@ -51,7 +57,59 @@ public class OtmIdCommandListPair {
         return otmId;
     }
 
+    public void setOtmId(int otmId) {
+        this.otmId = otmId;
+    }
+
+    /**
+     * @return otmId of the batch that was sent before this one or -1 if this
+     * is the first one. Receiver uses it to detect missing batches.
+     */
+    public int getPreviousOtmId() {
+        return previousOtmId;
+    }
+
+    public void setPreviousOtmId(int previousOtmId) {
+        this.previousOtmId = previousOtmId;
+    }
+
+    /**
+     * @return stream of commands in this batch. previousOtmId refers to
+     * previous batch of the same stream.
+     */
+    public int getStreamId() {
+        return streamId;
+    }
+
+    public void setStreamId(int streamId) {
+        this.streamId = streamId;
+    }
+
     public List<Command> getCommandList() {
         return commandList;
+    }
+
+    /**
+     * @return time in milliseconds when this batch was last sent or -1 if it
+     * has not been sent yet
+     */
+    public long getLastSentTime() {
+        return lastSentTime;
+    }
+
+    public void setLastSentTime(long lastSentTime) {
+        this.lastSentTime = lastSentTime;
+    }
+
+    /**
+     * @return size of this batch in a OneTrueMessage in bytes or -1 if it has
+     * not been measured yet
+     */
+    public int getEncodedSize() {
+        return encodedSize;
+    }
+
+    public void setEncodedSize(int encodedSize) {
+        this.encodedSize = encodedSize;
     }        
 }
\ No newline at end of file
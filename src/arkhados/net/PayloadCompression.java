@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2009-2011 William Linna
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Arkhados' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package arkhados.net;
+
+import com.jme3.network.serializing.SerializerException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses OneTrueMessage payload in place after it has been serialized.
+ * Compressed payload is written as original length, compressed length and
+ * compressed bytes. OneTrueMessage serializers mark it with a flag.
+ */
+public final class PayloadCompression {
+
+    private static final int HEADER = 8;
+    private static final int MAX_PAYLOAD = 1 << 20;
+
+    private static final ThreadLocal<byte[][]> scratch =
+            ThreadLocal.withInitial(() -> new byte[1][]);
+
+    private PayloadCompression() {
+    }
+
+    /**
+     * Replaces bytes [start, buffer.position()) of buffer with compressed
+     * form if stats allow it and compression pays off.
+     *
+     * @return true if payload was compressed
+     */
+    public static boolean compress(ByteBuffer buffer, int start,
+            PayloadCompressor compressor, CompressionStats stats) {
+        int length = buffer.position() - start;
+        if (compressor == null || stats == null || !buffer.hasArray()
+                || !stats.shouldCompress(length)) {
+            return false;
+        }
+
+        int maxLength = length - HEADER - 1;
+        byte[] target = getScratch(Math.max(maxLength, 0));
+        int compressed = maxLength <= 0 ? -1
+                : compressor.compress(buffer.array(),
+                        buffer.arrayOffset() + start, length, target, 0,
+                        maxLength);
+        if (!stats.record(length, compressed)) {
+            return false;
+        }
+
+        buffer.position(start);
+        buffer.putInt(length);
+        buffer.putInt(compressed);
+        buffer.put(target, 0, compressed);
+        return true;
+    }
+
+    /**
+     * Reads compressed payload from data and advances data past it.
+     *
+     * @return decompressed payload
+     */
+    public static ByteBuffer decompress(ByteBuffer data,
+            PayloadCompressor compressor) throws IOException {
+        if (compressor == null) {
+            throw new SerializerException("Received compressed "
+                    + "OneTrueMessage but no PayloadCompressor is registered");
+        }
+
+        int length = data.getInt();
+        int compressed = data.getInt();
+        if (length < 0 || length > MAX_PAYLOAD || compressed < 0
+                || compressed > data.remaining()) {
+            throw new SerializerException("Invalid compressed payload "
+                    + length + "/" + compressed);
+        }
+
+        byte[] source;
+        int offset;
+        if (data.hasArray()) {
+            source = data.array();
+            offset = data.arrayOffset() + data.position();
+        } else {
+            source = new byte[compressed];
+            data.duplicate().get(source);
+            offset = 0;
+        }
+
+        byte[] payload = new byte[length];
+        compressor.decompress(source, offset, compressed, payload, 0, length);
+        data.position(data.position() + compressed);
+        return ByteBuffer.wrap(payload);
+    }
+
+    private static byte[] getScratch(int length) {
+        byte[][] holder = scratch.get();
+        if (holder[0] == null || holder[0].length < length) {
+            holder[0] = new byte[Math.max(length, 4096)];
+        }
+        return holder[0];
+    }
+}
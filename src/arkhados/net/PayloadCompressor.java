@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2009-2011 William Linna
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Arkhados' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package arkhados.net;
+
+import java.io.IOException;
+
+/**
+ * Block compression of OneTrueMessage payloads. Both client and server must
+ * register OneTrueMessage serializer with equal compressor, including the
+ * same dictionary if the implementation uses one.
+ * <p>
+ * Implementations are called from several threads at once.
+ */
+public interface PayloadCompressor {
+
+    /**
+     * Compresses src[srcOffset, srcOffset + length) to dst.
+     *
+     * @param maxLength most bytes that may be written to dst
+     * @return number of bytes written to dst or -1 if compressed data would
+     * be longer than maxLength
+     */
+    public int compress(byte[] src, int srcOffset, int length, byte[] dst,
+            int dstOffset, int maxLength);
+
+    /**
+     * Decompresses src[srcOffset, srcOffset + length) to dst.
+     *
+     * @param originalLength exact length of decompressed data
+     * @throws IOException if data is corrupt or does not decompress to
+     * originalLength bytes
+     */
+    public void decompress(byte[] src, int srcOffset, int length, byte[] dst,
+            int dstOffset, int originalLength) throws IOException;
+}
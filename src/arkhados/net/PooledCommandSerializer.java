@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2009-2011 William Linna
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Arkhados' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package arkhados.net;
+
+import com.jme3.network.serializing.Serializer;
+import com.jme3.network.serializing.SerializerException;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Serializes fields of Poolable command like FieldSerializer, but reads
+ * into instance taken from CommandPool. Primitive fields are read and
+ * written without boxing, so reading command with only primitive fields does
+ * not allocate once the pool is warm.
+ */
+public class PooledCommandSerializer extends Serializer {
+
+    private final CommandPool<?> pool;
+    private final Field[] fields;
+
+    public PooledCommandSerializer(CommandPool<?> pool) {
+        this.pool = pool;
+
+        List<Field> found = new ArrayList<>();
+        for (Class<?> c = pool.getType(); c != Object.class;
+                c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers)
+                        || Modifier.isTransient(modifiers)) {
+                    continue;
+                }
+                field.setAccessible(true);
+                found.add(field);
+            }
+        }
+
+        fields = found.toArray(new Field[found.size()]);
+        Arrays.sort(fields, Comparator.comparing(Field::getName));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> T readObject(ByteBuffer data, Class<T> c) throws IOException {
+        Object object = pool.obtain();
+        try {
+            for (Field field : fields) {
+                readField(data, object, field);
+            }
+        } catch (IllegalAccessException ex) {
+            throw new SerializerException("Cannot read " + c, ex);
+        }
+
+        return (T) object;
+    }
+
+    @Override
+    public void writeObject(ByteBuffer buffer, Object object)
+            throws IOException {
+        try {
+            for (Field field : fields) {
+                writeField(buffer, object, field);
+            }
+        } catch (IllegalAccessException ex) {
+            throw new SerializerException("Cannot write " + object, ex);
+        }
+    }
+
+    private static void readField(ByteBuffer data, Object object, Field field)
+            throws IOException, IllegalAccessException {
+        Class<?> type = field.getType();
+        if (type == int.class) {
+            field.setInt(object, data.getInt());
+        } else if (type == float.class) {
+            field.setFloat(object, data.getFloat());
+        } else if (type == long.class) {
+            field.setLong(object, data.getLong());
+        } else if (type == boolean.class) {
+            field.setBoolean(object, data.get() != 0);
+        } else if (type == short.class) {
+            field.setShort(object, data.getShort());
+        } else if (type == byte.class) {
+            field.setByte(object, data.get());
+        } else if (type == double.class) {
+            field.setDouble(object, data.getDouble());
+        } else if (type == char.class) {
+            field.setChar(object, data.getChar());
+        } else {
+            field.set(object, Serializer.readClassAndObject(data));
+        }
+    }
+
+    private static void writeField(ByteBuffer buffer, Object object,
+            Field field) throws IOException, IllegalAccessException {
+        Class<?> type = field.getType();
+        if (type == int.class) {
+            buffer.putInt(field.getInt(object));
+        } else if (type == float.class) {
+            buffer.putFloat(field.getFloat(object));
+        } else if (type == long.class) {
+            buffer.putLong(field.getLong(object));
+        } else if (type == boolean.class) {
+            buffer.put((byte) (field.getBoolean(object) ? 1 : 0));
+        } else if (type == short.class) {
+            buffer.putShort(field.getShort(object));
+        } else if (type == byte.class) {
+            buffer.put(field.getByte(object));
+        } else if (type == double.class) {
+            buffer.putDouble(field.getDouble(object));
+        } else if (type == char.class) {
+            buffer.putChar(field.getChar(object));
+        } else {
+            Serializer.writeClassAndObject(buffer, field.get(object));
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2009-2011 William Linna
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Arkhados' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package arkhados.net;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Keeps guaranteed batches of one source in order. Batches that arrive before
+ * their predecessor are held back until the missing batch is received.
+ */
+public class ReceiveWindow {
+
+    private int lastDeliveredOtmId = -1;
+    private final SortedMap<Integer, OtmIdCommandListPair> pending =
+            new TreeMap<>();
+
+    /**
+     * Accepts pair and adds every batch that can now be delivered to
+     * deliverable in the order they must be handled.
+     */
+    public void receive(OtmIdCommandListPair pair,
+            List<OtmIdCommandListPair> deliverable) {
+        int otmId = pair.getOtmId();
+        if (otmId <= lastDeliveredOtmId) {
+            return;
+        }
+
+        if (pair.getPreviousOtmId() != lastDeliveredOtmId) {
+            // Batches outside of Ack's mask would not be confirmed anyway so
+            // there is no point in holding them
+            if (otmId - lastDeliveredOtmId - 1 < Long.SIZE) {
+                pending.put(otmId, pair);
+            }
+            return;
+        }
+
+        deliverable.add(pair);
+        lastDeliveredOtmId = otmId;
+
+        for (Iterator<OtmIdCommandListPair> it = pending.values().iterator();
+                it.hasNext();) {
+            OtmIdCommandListPair next = it.next();
+            if (next.getOtmId() <= lastDeliveredOtmId) {
+                it.remove();
+            } else if (next.getPreviousOtmId() == lastDeliveredOtmId) {
+                it.remove();
+                deliverable.add(next);
+                lastDeliveredOtmId = next.getOtmId();
+            } else {
+                break;
+            }
+        }
+    }
+
+    public int getLastDeliveredOtmId() {
+        return lastDeliveredOtmId;
+    }
+
+    public long getReceivedMask() {
+        long mask = 0;
+        for (Integer otmId : pending.keySet()) {
+            int offset = otmId - lastDeliveredOtmId - 1;
+            if (offset < Long.SIZE) {
+                mask |= 1L << offset;
+            }
+        }
+        return mask;
+    }
+
+    public void reset() {
+        lastDeliveredOtmId = -1;
+        pending.clear();
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2009-2011 William Linna
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Arkhados' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package arkhados.net;
+
+import arkhados.net.connection.MessageFragmenter;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decides which unconfirmed guaranteed batches go into next OneTrueMessage.
+ * Batch is sent again only after retransmission timeout has passed since it
+ * was last sent, and guaranteed payload of single message is limited to
+ * mtuBudget bytes. Oldest batches are preferred. The oldest due batch of each
+ * stream is always sent, even over budget, so that large batches cannot get
+ * stuck behind steady traffic of other streams. When batches of several
+ * streams are scheduled into same message, the rest of the budget is shared
+ * and streams with lower id are served first.
+ */
+public class RetransmissionScheduler {
+
+    private static final Logger logger =
+            Logger.getLogger(RetransmissionScheduler.class.getName());
+
+    /**
+     * Room for length prefix, class id and OneTrueMessage header with every
+     * stream acknowledged and compression header, with some margin
+     */
+    public static final int HEADER_RESERVE = 160;
+
+    private volatile int mtuBudget =
+            MessageFragmenter.DEFAULT_MAX_DATAGRAM_SIZE - HEADER_RESERVE;
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    public void schedule(GuaranteedRingBuffer unconfirmed, long now,
+            long timeout, List<OtmIdCommandListPair> out) {
+        // Batches of other streams already in out count against budget
+        int payload = 0;
+        for (OtmIdCommandListPair pair : out) {
+            payload += getEncodedSize(pair);
+        }
+        long saved = 0;
+        boolean admitted = false;
+
+        for (int otmId = unconfirmed.getFirstOtmId();
+                otmId != GuaranteedRingBuffer.NONE;
+                otmId = unconfirmed.getNextOtmId(otmId)) {
+            OtmIdCommandListPair pair = unconfirmed.get(otmId);
+            int size = getEncodedSize(pair);
+
+            long sent = pair.getLastSentTime();
+            boolean due = sent == -1 || now - sent >= timeout;
+            // Oldest due batch of this stream goes even if it is over budget
+            boolean fits = !admitted || payload + size <= mtuBudget;
+
+            if (due && fits) {
+                out.add(pair);
+                pair.setLastSentTime(now);
+                payload += size;
+                admitted = true;
+            } else {
+                saved += size;
+            }
+        }
+
+        if (saved > 0) {
+            bytesSaved.addAndGet(saved);
+        }
+    }
+
+    private int getEncodedSize(OtmIdCommandListPair pair) {
+        if (pair.getEncodedSize() == -1) {
+            try {
+                pair.setEncodedSize(OneTrueMessageSerializer.measure(pair));
+            } catch (IOException ex) {
+                logger.log(Level.WARNING, "", ex);
+                pair.setEncodedSize(0);
+            }
+        }
+
+        return pair.getEncodedSize();
+    }
+
+    public int getMtuBudget() {
+        return mtuBudget;
+    }
+
+    /**
+     * @param mtuBudget maximum number of bytes of guaranteed batches in one
+     * OneTrueMessage. To keep full retransmissions in one datagram it should
+     * be MessageFragmenter's maxDatagramSize minus HEADER_RESERVE. Unreliables
+     * are not limited by it, so they can still make message fragmented.
+     */
+    public void setMtuBudget(int mtuBudget) {
+        this.mtuBudget = mtuBudget;
+    }
+
+    /**
+     * @return number of bytes that were not sent compared to sending every
+     * unconfirmed batch in every message
+     */
+    public long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    public void resetBytesSaved() {
+        bytesSaved.set(0);
+    }
+}
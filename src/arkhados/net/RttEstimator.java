@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2009-2011 William Linna
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Arkhados' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package arkhados.net;
+
+/**
+ * Estimates round-trip time, its variance and packet loss of one connection.
+ * OneTrueMessages that contain guaranteed batches are answered with Ack that
+ * echoes the otmId of the message, so every such message works as a probe.
+ *
+ * Smoothing follows the usual TCP retransmission timer calculation (RFC
+ * 6298). All times are in milliseconds.
+ */
+public class RttEstimator {
+
+    private static final int HISTORY = 256;
+    private static final long INITIAL_TIMEOUT = 1000;
+    private static final float RTT_GAIN = 0.125f;
+    private static final float VARIANCE_GAIN = 0.25f;
+    private static final float LOSS_GAIN = 0.05f;
+    private static final byte NONE = 0;
+    private static final byte AWAITING = 1;
+    private static final byte RESOLVED = 2;
+
+    private final int[] probeIds = new int[HISTORY];
+    private final long[] probeTimes = new long[HISTORY];
+    private final byte[] probeStates = new byte[HISTORY];
+    private int oldestProbe = -1;
+    private int newestProbe = -1;
+
+    private boolean hasSample = false;
+    private float smoothedRtt = 0f;
+    private float rttVariance = 0f;
+    private float lossRate = 0f;
+
+    public void onSend(int otmId, long now) {
+        int slot = otmId & (HISTORY - 1);
+        if (probeStates[slot] == AWAITING) {
+            // History wrapped around before Ack arrived
+            registerLoss();
+        }
+
+        probeIds[slot] = otmId;
+        probeTimes[slot] = now;
+        probeStates[slot] = AWAITING;
+
+        if (oldestProbe == -1 || otmId - oldestProbe >= HISTORY) {
+            oldestProbe = otmId;
+        }
+        newestProbe = otmId;
+
+        expireProbes(now);
+    }
+
+    public void onAck(int otmId, long now) {
+        onAck(otmId, 0L, now);
+    }
+
+    /**
+     * @param echoMask bit i means that probe otmId - 1 - i was acknowledged
+     * too. Those were merged into this ack, so their round-trip time is not
+     * known, but they are not lost either.
+     */
+    public void onAck(int otmId, long echoMask, long now) {
+        int slot = otmId & (HISTORY - 1);
+        if (probeIds[slot] == otmId && probeStates[slot] == AWAITING) {
+            probeStates[slot] = RESOLVED;
+            addSample(now - probeTimes[slot]);
+            lossRate += LOSS_GAIN * (0f - lossRate);
+        }
+
+        while (echoMask != 0) {
+            int echo = otmId - 1 - Long.numberOfTrailingZeros(echoMask);
+            echoMask &= echoMask - 1;
+            slot = echo & (HISTORY - 1);
+            if (probeIds[slot] == echo && probeStates[slot] == AWAITING) {
+                probeStates[slot] = RESOLVED;
+                lossRate += LOSS_GAIN * (0f - lossRate);
+            }
+        }
+
+        expireProbes(now);
+    }
+
+    private void addSample(float rtt) {
+        if (!hasSample) {
+            smoothedRtt = rtt;
+            rttVariance = rtt / 2f;
+            hasSample = true;
+        } else {
+            rttVariance += VARIANCE_GAIN
+                    * (Math.abs(smoothedRtt - rtt) - rttVariance);
+            smoothedRtt += RTT_GAIN * (rtt - smoothedRtt);
+        }
+    }
+
+    private void expireProbes(long now) {
+        long timeout = hasSample
+                ? (long) getRetransmissionTimeout() : INITIAL_TIMEOUT;
+        for (; oldestProbe != -1 && oldestProbe <= newestProbe;
+                ++oldestProbe) {
+            int slot = oldestProbe & (HISTORY - 1);
+            if (probeIds[slot] != oldestProbe || probeStates[slot] != AWAITING) {
+                continue;
+            }
+
+            if (now - probeTimes[slot] < timeout) {
+                break;
+            }
+
+            probeStates[slot] = RESOLVED;
+            registerLoss();
+        }
+    }
+
+    private void registerLoss() {
+        lossRate += LOSS_GAIN * (1f - lossRate);
+    }
+
+    public boolean hasSample() {
+        return hasSample;
+    }
+
+    public float getSmoothedRtt() {
+        return smoothedRtt;
+    }
+
+    public float getRttVariance() {
+        return rttVariance;
+    }
+
+    /**
+     * @return estimated fraction of probes that never got acknowledged, from
+     * 0 to 1
+     */
+    public float getLossRate() {
+        return lossRate;
+    }
+
+    public float getRetransmissionTimeout() {
+        return smoothedRtt + 4f * rttVariance;
+    }
+
+    public void reset() {
+        for (int i = 0; i < HISTORY; i++) {
+            probeStates[i] = NONE;
+        }
+        oldestProbe = -1;
+        newestProbe = -1;
+        hasSample = false;
+        smoothedRtt = 0f;
+        rttVariance = 0f;
+        lossRate = 0f;
+    }
+}
@@ -46,4 +46,23 @@ public interface Sender extends AppState, CommandHandler {
     public abstract void reset();
    
     public void setShouldSend(boolean shouldSend);
+
+    /**
+     * Tells that some connection owes acknowledgement. It is piggybacked on
+     * the next OneTrueMessage, and if nothing is sent within max ack delay,
+     * message is sent only for the acknowledgement. Safe to call from any
+     * thread.
+     */
+    public void requestAck();
+
+    /**
+     * @param source connection whose estimates are wanted. Ignored by client.
+     */
+    public RttEstimator getRttEstimator(Object source);
+
+    /**
+     * @param source connection whose state is wanted. Ignored by client.
+     * @return state of connection or null if source is not connected
+     */
+    public ConnectionState getConnectionState(Object source);
 }
\ No newline at end of file
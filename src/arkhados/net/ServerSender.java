@@ -31,48 +31,155 @@
  */
 package arkhados.net;
 
-import com.jme3.network.Filters;
+import arkhados.net.connection.UdpServer;
+import com.jme3.math.Vector3f;
 import com.jme3.network.HostedConnection;
 import com.jme3.network.Server;
-import java.nio.BufferOverflowException;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.logging.Level;
 
+/**
+ * Sends OneTrueMessages to every connection of server. With
+ * setParallelism messages of different connections are built, serialized
+ * and sent on a ForkJoinPool, but the game thread still waits for the whole
+ * broadcast on each tick. Enqueued commands, CommandEncodingCache,
+ * connection list and otmId counter belong to the game thread and are
+ * handed to the workers without copying, so the game thread must not run
+ * ahead and enqueue the next tick while workers read them. Parallelism
+ * shortens the tick but does not take broadcast off the game thread.
+ */
 public class ServerSender extends AbstractSender {
 
-    private final Map<HostedConnection, List<OtmIdCommandListPair>> unconfirmedGuaranteed = new HashMap<>();
-    private final Map<HostedConnection, List<Command>> enqueuedGuaranteed = new HashMap<>();
-    private final Map<HostedConnection, List<Command>> enqueuedUnreliables = new HashMap<>();
+    private static final int CONNECTIONS_PER_TASK = 4;
+
+    private final List<HostedConnection> connections = new ArrayList<>();
+    private final ConnectionStates connectionStates;
+    private final boolean ownsConnectionStates;
     private final Server server;
+    private InterestManager interestManager;
+    private final List<HostedConnection> interested = new ArrayList<>();
+    private final CommandEncodingCache encodingCache =
+            new CommandEncodingCache();
+    private ForkJoinPool pool;
+    private volatile long lastBroadcastNanos = 0;
 
     public ServerSender(Server server) {
         this.server = server;
+        // Share states with transport when possible
+        ownsConnectionStates = !(server instanceof UdpServer);
+        if (ownsConnectionStates) {
+            connectionStates = new ConnectionStates();
+        } else {
+            connectionStates = ((UdpServer) server).getConnectionStates();
+        }
     }
 
     private void broadcast() {
+        long start = System.nanoTime();
         try {
-            for (HostedConnection connection : enqueuedGuaranteed.keySet()) {
-                OneTrueMessage otm = createOneTrueMessage(connection);
-                server.broadcast(Filters.in(connection), otm);
+            if (pool != null && connections.size() > CONNECTIONS_PER_TASK) {
+                broadcastParallel();
+                return;
+            }
+
+            for (HostedConnection connection : connections) {
+                // One connection's oversized message must not stop the rest
+                try {
+                    sendTo(connection);
+                } catch (RuntimeException ex) {
+                    logger.log(Level.SEVERE, "Failed to send to connection "
+                            + connection.getId(), ex);
+                }
             }
-        } catch (BufferOverflowException ex) {
-            logger.log(Level.SEVERE, "", ex);
-            System.exit(1);
         } catch (Exception ex) {
             logger.log(Level.WARNING, "", ex);
+        } finally {
+            encodingCache.clear();
+            lastBroadcastNanos = System.nanoTime() - start;
+            if (logger.isLoggable(Level.FINE)) {
+                logger.log(Level.FINE, "Sent to {0} connections in {1} us",
+                        new Object[]{connections.size(),
+                            lastBroadcastNanos / 1000});
+            }
+        }
+    }
+
+    /**
+     * Game thread waits until every message has been sent so that commands of
+     * next frame cannot be enqueued while messages are being built. Joining
+     * on the next tick instead would need double buffered command queues
+     * and encoding cache.
+     */
+    private void broadcastParallel() throws IOException {
+        // Cache must be complete before workers start reading it
+        encodingCache.encodeShared();
+        pool.invoke(new BroadcastTask(0, connections.size()));
+    }
+
+    private void sendTo(HostedConnection connection) {
+        ConnectionState state = connectionStates.get(connection);
+        if (state == null || !isDue(state)) {
+            return;
         }
+        OneTrueMessage otm = createOneTrueMessage(state);
+        otm.setEncodingCache(encodingCache);
+        // Unicast straight to connection's endpoint. Filtered broadcast
+        // would test every endpoint for every connection.
+        connection.send(otm);
     }
 
+    private class BroadcastTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+
+        BroadcastTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > CONNECTIONS_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new BroadcastTask(from, middle),
+                        new BroadcastTask(middle, to));
+                return;
+            }
+
+            for (int i = from; i < to; i++) {
+                try {
+                    sendTo(connections.get(i));
+                } catch (Exception ex) {
+                    logger.log(Level.WARNING, "", ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if guaranteed StreamedCommand has
+     * invalid stream
+     */
     public void addCommandForSingle(Command command,
             HostedConnection connection) {
+        validateStream(command);
+        ConnectionState state = connectionStates.get(connection);
+        if (state == null) {
+            return;
+        }
+
         if (command.isGuaranteed()) {
-            enqueuedGuaranteed.get(connection).add(command);
+            state.getEnqueuedGuaranteed().add(command);
         } else {
-            enqueuedUnreliables.get(connection).add(command);
+            state.enqueueUnreliable(command);
         }
 
         setShouldSend(true);
@@ -89,16 +196,151 @@ public class ServerSender extends AbstractSender {
             throw new IllegalArgumentException("Null Commands are"
                     + " not allowed");
         }
+        validateStream(command);
         setShouldSend(true);
+        // Snapshots are delta encoded separately for each connection
+        if (connections.size() > 1 && !(command instanceof SnapshotCommand)) {
+            encodingCache.share(command);
+        }
         for (HostedConnection hostedConnection : connections) {
             addCommandForSingle(command, hostedConnection);
         }
     }
 
+    /**
+     * Invalid stream would otherwise abort every message of the connection
+     * in createOneTrueMessage, so caller gets the error instead
+     */
+    private static void validateStream(Command command) {
+        if (command.isGuaranteed()) {
+            ConnectionState.streamOf(command);
+        }
+    }
+
+    /**
+     * Sends command to connections that InterestManager considers interested
+     * in position. Without InterestManager command goes to all connections.
+     */
+    public void addCommand(Command command, Vector3f position) {
+        if (interestManager == null) {
+            addCommand(command);
+            return;
+        }
+
+        interestManager.getInterested(position, interested);
+        addCommandForInterested(command);
+    }
+
+    /**
+     * Sends command to connections that InterestManager considers interested
+     * in entity. Without InterestManager command goes to all connections.
+     */
+    public void addCommandForEntity(Command command, int entityId) {
+        if (interestManager == null) {
+            addCommand(command);
+            return;
+        }
+
+        interestManager.getInterestedInEntity(entityId, interested);
+        addCommandForInterested(command);
+    }
+
+    private void addCommandForInterested(Command command) {
+        try {
+            if (!interested.isEmpty()) {
+                addCommand(command, interested);
+            }
+        } finally {
+            interested.clear();
+        }
+    }
+
+    public InterestManager getInterestManager() {
+        return interestManager;
+    }
+
+    public void setInterestManager(InterestManager interestManager) {
+        this.interestManager = interestManager;
+    }
+
     public void addConnection(HostedConnection conn) {
-        unconfirmedGuaranteed.put(conn, new ArrayList<>());
-        enqueuedGuaranteed.put(conn, new ArrayList<>());
-        enqueuedUnreliables.put(conn, new ArrayList<>());
+        ConnectionState state = attachState(conn);
+        if (state == null) {
+            // Connection has already been closed
+            return;
+        }
+        state.resetSender();
+        if (!connections.contains(conn)) {
+            connections.add(conn);
+        }
+    }
+
+    /**
+     * @return state of connection that is being added or null if it is
+     * gone. Only creates the state if this sender owns the states. Shared
+     * states are created and removed by UdpServer alone, so that a late
+     * call cannot bring back the state of a closed connection whose id is
+     * reused.
+     */
+    ConnectionState attachState(HostedConnection connection) {
+        return ownsConnectionStates ? connectionStates.create(connection)
+                : connectionStates.get(connection);
+    }
+
+    /**
+     * Limits how many bytes of unreliables are sent to connection per second.
+     * Useful for clients with slow link. 0 means that default of
+     * UnreliableScheduler is used.
+     */
+    public void setBytesPerSecond(HostedConnection connection,
+            int bytesPerSecond) {
+        ConnectionState state = connectionStates.get(connection);
+        if (state != null) {
+            state.setBytesPerSecond(bytesPerSecond);
+        }
+    }
+
+    /**
+     * Sends to connection at most tickRate times per second. Useful for
+     * clients that cannot take full rate. Connection's rate cannot exceed
+     * sender's tick rate. 0 removes the override.
+     */
+    public void setTickRate(HostedConnection connection, float tickRate) {
+        ConnectionState state = connectionStates.get(connection);
+        if (state != null) {
+            state.setTicker(tickRate > 0f ? new NetworkTicker(tickRate) : null);
+        }
+    }
+
+    /**
+     * @param parallelism number of threads that build and serialize messages
+     * of different connections at the same time. 1 or less builds them on
+     * the game thread.
+     */
+    public void setParallelism(int parallelism) {
+        if (pool != null) {
+            pool.shutdown();
+        }
+        pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+    }
+
+    /**
+     * @return how many nanoseconds building, serializing and sending messages
+     * of all connections took on the latest tick
+     */
+    public long getLastBroadcastNanos() {
+        return lastBroadcastNanos;
+    }
+
+    @Override
+    protected CommandEncodingCache getEncodingCache() {
+        return encodingCache;
+    }
+
+    @Override
+    public void cleanup() {
+        super.cleanup();
+        setParallelism(1);
     }
 
     @Override
@@ -120,27 +362,27 @@ public class ServerSender extends AbstractSender {
     }
 
     @Override
-    protected List<OtmIdCommandListPair> getGuaranteedForSource(Object source) {
-        return unconfirmedGuaranteed.get((HostedConnection) source);
+    public ConnectionState getConnectionState(Object source) {
+        return connectionStates.get((HostedConnection) source);
     }
 
-    @Override
-    protected List<Command> getEnqueuedGuaranteedForSource(
-            HostedConnection connection) {
-        return enqueuedGuaranteed.get(connection);
-    }
-
-    @Override
-    protected List<Command> getEnqueuedUnreliablesForSource(
-            HostedConnection connection) {
-        return enqueuedUnreliables.get(connection);
+    public ConnectionStates getConnectionStates() {
+        return connectionStates;
     }
 
     @Override
     public void reset() {
-        unconfirmedGuaranteed.clear();
-        enqueuedGuaranteed.clear();
-        enqueuedUnreliables.clear();
+        for (HostedConnection connection : connections) {
+            ConnectionState state = connectionStates.get(connection);
+            if (state != null) {
+                state.resetSender();
+            }
+        }
+        connections.clear();
+        encodingCache.clear();
+        if (interestManager != null) {
+            interestManager.clear();
+        }
     }
 
     public Server getServer() {
@@ -148,8 +390,17 @@ public class ServerSender extends AbstractSender {
     }
 
     public void removeConnection(HostedConnection connection) {
-        unconfirmedGuaranteed.remove(connection);
-        enqueuedGuaranteed.remove(connection);
-        enqueuedUnreliables.remove(connection);
+        connections.remove(connection);
+        if (interestManager != null) {
+            interestManager.removeConnection(connection);
+        }
+        if (ownsConnectionStates) {
+            connectionStates.remove(connection);
+        } else {
+            ConnectionState state = connectionStates.get(connection);
+            if (state != null) {
+                state.resetSender();
+            }
+        }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2009-2011 William Linna
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Arkhados' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package arkhados.net;
+
+import com.jme3.network.serializing.Serializable;
+
+/**
+ * State of one entity as list of float fields. SnapshotCommands are not sent
+ * as they are; sender encodes them as SnapshotDelta against the newest
+ * snapshot of the same key that the other end has acknowledged, and receiver
+ * turns them back into SnapshotCommands before handing them to
+ * CommandHandlers.
+ *
+ * Fields must not be modified after the command has been added to Sender.
+ */
+@Serializable
+public class SnapshotCommand implements CoalescingCommand {
+
+    public static final int MAX_FIELDS = Long.SIZE;
+
+    private int key;
+    private float[] fields;
+
+    public SnapshotCommand() {
+    }
+
+    /**
+     * @param key identifies the entity, for example entity id
+     * @param fields state of the entity. At most MAX_FIELDS fields.
+     */
+    public SnapshotCommand(int key, float... fields) {
+        if (fields.length > MAX_FIELDS) {
+            throw new IllegalArgumentException("Snapshot can have at most "
+                    + MAX_FIELDS + " fields");
+        }
+        this.key = key;
+        this.fields = fields;
+    }
+
+    @Override
+    public boolean isGuaranteed() {
+        return false;
+    }
+
+    @Override
+    public long getCoalescingKey() {
+        return key;
+    }
+
+    public int getKey() {
+        return key;
+    }
+
+    public float[] getFields() {
+        return fields;
+    }
+}
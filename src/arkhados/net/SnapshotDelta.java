@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2009-2011 William Linna
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Arkhados' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package arkhados.net;
+
+import com.jme3.network.serializing.Serializable;
+
+/**
+ * Wire form of SnapshotCommand. If baselineOtmId is -1, values contains every
+ * field. Otherwise values contains only the fields whose bit is set in
+ * changedMask and the rest are taken from the snapshot of the same key in
+ * OneTrueMessage baselineOtmId.
+ */
+@Serializable
+public class SnapshotDelta implements Command {
+
+    public static final int FULL = -1;
+
+    private int key;
+    private int baselineOtmId;
+    private long changedMask;
+    private float[] values;
+
+    public SnapshotDelta() {
+    }
+
+    public SnapshotDelta(int key, int baselineOtmId, long changedMask,
+            float[] values) {
+        this.key = key;
+        this.baselineOtmId = baselineOtmId;
+        this.changedMask = changedMask;
+        this.values = values;
+    }
+
+    /**
+     * Encodes fields against baseline. If baseline is null, full snapshot is
+     * created.
+     */
+    public static SnapshotDelta encode(int key, float[] fields,
+            int baselineOtmId, float[] baseline) {
+        if (baseline == null || baseline.length != fields.length) {
+            return new SnapshotDelta(key, FULL, 0, fields);
+        }
+
+        long mask = 0;
+        int changed = 0;
+        for (int i = 0; i < fields.length; i++) {
+            if (Float.floatToIntBits(fields[i])
+                    != Float.floatToIntBits(baseline[i])) {
+                mask |= 1L << i;
+                ++changed;
+            }
+        }
+
+        float[] changedValues = new float[changed];
+        for (int i = 0, j = 0; i < fields.length; i++) {
+            if ((mask & (1L << i)) != 0) {
+                changedValues[j++] = fields[i];
+            }
+        }
+
+        return new SnapshotDelta(key, baselineOtmId, mask, changedValues);
+    }
+
+    /**
+     * @return full fields or null if baseline is needed but missing
+     */
+    public float[] decode(float[] baseline) {
+        if (baselineOtmId == FULL) {
+            return values;
+        }
+
+        if (baseline == null) {
+            return null;
+        }
+
+        float[] fields = baseline.clone();
+        for (int i = 0, j = 0; i < fields.length; i++) {
+            if ((changedMask & (1L << i)) != 0) {
+                fields[i] = values[j++];
+            }
+        }
+        return fields;
+    }
+
+    @Override
+    public boolean isGuaranteed() {
+        return false;
+    }
+
+    public int getKey() {
+        return key;
+    }
+
+    public int getBaselineOtmId() {
+        return baselineOtmId;
+    }
+
+    public long getChangedMask() {
+        return changedMask;
+    }
+
+    public float[] getValues() {
+        return values;
+    }
+}
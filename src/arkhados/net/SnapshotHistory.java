@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2009-2011 William Linna
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Arkhados' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package arkhados.net;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remembers snapshot fields by OneTrueMessage id and snapshot key for the
+ * last SIZE messages. Sender keeps one for snapshots it has sent and receiver
+ * one for snapshots it has received.
+ */
+public class SnapshotHistory {
+
+    public static final int SIZE = 32;
+
+    private final int[] otmIds = new int[SIZE];
+    private final List<Map<Integer, float[]>> snapshots =
+            new ArrayList<>(SIZE);
+
+    public SnapshotHistory() {
+        for (int i = 0; i < SIZE; i++) {
+            otmIds[i] = -1;
+            snapshots.add(new HashMap<>());
+        }
+    }
+
+    public void put(int otmId, int key, float[] fields) {
+        int slot = otmId & (SIZE - 1);
+        if (otmIds[slot] != otmId) {
+            otmIds[slot] = otmId;
+            snapshots.get(slot).clear();
+        }
+        snapshots.get(slot).put(key, fields);
+    }
+
+    /**
+     * @return fields of snapshot or null if it is not known
+     */
+    public float[] get(int otmId, int key) {
+        int slot = otmId & (SIZE - 1);
+        if (otmId < 0 || otmIds[slot] != otmId) {
+            return null;
+        }
+        return snapshots.get(slot).get(key);
+    }
+
+    /**
+     * @return keys of snapshots sent in given OneTrueMessage or null if it is
+     * not known
+     */
+    public Set<Integer> getKeys(int otmId) {
+        if (!contains(otmId)) {
+            return null;
+        }
+        return snapshots.get(otmId & (SIZE - 1)).keySet();
+    }
+
+    public boolean contains(int otmId) {
+        return otmId >= 0 && otmIds[otmId & (SIZE - 1)] == otmId;
+    }
+
+    public void clear() {
+        for (int i = 0; i < SIZE; i++) {
+            otmIds[i] = -1;
+            snapshots.get(i).clear();
+        }
+    }
+}
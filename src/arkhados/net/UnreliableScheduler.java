@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2009-2011 William Linna
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Arkhados' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package arkhados.net;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Decides which enqueued unreliables go into next OneTrueMessage when
+ * connection has a bandwidth budget. Each connection earns bytesPerSecond
+ * credit over time and commands are sent in order of accumulated priority
+ * while there is credit left. Commands that do not get sent keep their
+ * accumulated priority, so low-priority commands eventually win over fresh
+ * high-priority ones instead of starving. Acks are never held back.
+ * <p>
+ * Budget of 0 means unlimited and everything is sent immediately.
+ * <p>
+ * Different connections can be scheduled from different threads at the same
+ * time.
+ */
+public class UnreliableScheduler {
+
+    private static final Logger logger =
+            Logger.getLogger(UnreliableScheduler.class.getName());
+
+    private static final ThreadLocal<Scratch> scratches =
+            ThreadLocal.withInitial(Scratch::new);
+    private volatile int bytesPerSecond = 0;
+    private volatile long maxBurstMillis = 100;
+    private final AtomicLong bytesDeferred = new AtomicLong();
+
+    private static class Scratch {
+
+        long[] order = new long[64];
+        boolean[] sent = new boolean[64];
+    }
+
+    /**
+     * Moves unreliables that fit into budget from state's queue to out. Rest
+     * of the commands stay enqueued.
+     *
+     * @param cache sizes of shared commands are taken from here if they have
+     * been encoded. May be null.
+     * @return true if some commands were left waiting
+     */
+    public boolean schedule(ConnectionState state, long now,
+            CommandEncodingCache cache, List<Command> out) {
+        List<Command> queue = state.getEnqueuedUnreliables();
+        int budget = state.getBytesPerSecond() > 0
+                ? state.getBytesPerSecond() : bytesPerSecond;
+
+        if (budget <= 0) {
+            out.addAll(queue);
+            state.clearEnqueuedUnreliables();
+            return false;
+        }
+
+        float credit = earnCredit(state, budget, now);
+
+        int count = queue.size();
+        Scratch scratch = scratches.get();
+        if (scratch.order.length < count) {
+            scratch.order = new long[Math.max(count, scratch.order.length * 2)];
+            scratch.sent = new boolean[scratch.order.length];
+        }
+        long[] order = scratch.order;
+        boolean[] sent = scratch.sent;
+
+        // Priorities are positive so their raw bits sort like the floats
+        // themselves. Index goes into low bits to keep sort allocation free.
+        float[] priorities = state.getUnreliablePriorities();
+        for (int i = 0; i < count; i++) {
+            Command command = queue.get(i);
+            priorities[i] += command instanceof PrioritizedCommand
+                    ? ((PrioritizedCommand) command).getPriority() : 1f;
+            order[i] = ((long) Float.floatToIntBits(priorities[i]) << 32) | i;
+            sent[i] = false;
+        }
+        Arrays.sort(order, 0, count);
+
+        int remaining = 0;
+        long deferredSize = 0;
+        for (int i = count - 1; i >= 0; i--) {
+            int index = (int) order[i];
+            Command command = queue.get(index);
+            if (command instanceof Ack) {
+                sent[index] = true;
+                continue;
+            }
+
+            int size = getSize(command, cache);
+            // Credit may go negative so that command larger than one tick's
+            // share still gets sent. Debt is paid back before next one.
+            if (credit > 0f) {
+                credit -= size;
+                sent[index] = true;
+            } else {
+                deferredSize += size;
+                ++remaining;
+            }
+        }
+
+        for (int i = 0; i < count; i++) {
+            if (sent[i]) {
+                out.add(queue.get(i));
+            }
+        }
+
+        if (deferredSize > 0) {
+            bytesDeferred.addAndGet(deferredSize);
+        }
+        state.setBandwidthCredit(credit);
+        state.removeUnreliables(sent);
+
+        return remaining > 0;
+    }
+
+    private float earnCredit(ConnectionState state, int budget, long now) {
+        long last = state.getLastCreditTime();
+        state.setLastCreditTime(now);
+
+        float maxBurst = budget * maxBurstMillis / 1000f;
+        if (last == -1) {
+            return maxBurst;
+        }
+
+        float credit = state.getBandwidthCredit()
+                + budget * (now - last) / 1000f;
+        return Math.min(credit, maxBurst);
+    }
+
+    private static int getSize(Command command, CommandEncodingCache cache) {
+        if (cache != null) {
+            int size = cache.getEncodedSize(command);
+            if (size != -1) {
+                return size;
+            }
+        }
+
+        try {
+            return OneTrueMessageSerializer.measure(command);
+        } catch (IOException ex) {
+            logger.log(Level.WARNING, "", ex);
+            return 0;
+        }
+    }
+
+    public int getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * @param bytesPerSecond default budget for connections that do not have
+     * their own. 0 means unlimited.
+     */
+    public void setBytesPerSecond(int bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public long getMaxBurstMillis() {
+        return maxBurstMillis;
+    }
+
+    /**
+     * @param maxBurstMillis how many milliseconds worth of unused budget
+     * connection can save up
+     */
+    public void setMaxBurstMillis(long maxBurstMillis) {
+        this.maxBurstMillis = maxBurstMillis;
+    }
+
+    /**
+     * @return number of bytes of unreliables that had to wait, counted again
+     * each time they wait
+     */
+    public long getBytesDeferred() {
+        return bytesDeferred.get();
+    }
+
+    public void resetBytesDeferred() {
+        bytesDeferred.set(0);
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2009-2011 William Linna
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Arkhados' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package arkhados.net.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads values written by BitWriter. Bytes are taken from buffer only when
+ * needed, so after align() buffer is positioned right after the last byte
+ * BitWriter flushed.
+ */
+public class BitReader {
+
+    private ByteBuffer buffer;
+    private long available = 0;
+    private int availableBits = 0;
+
+    public BitReader() {
+    }
+
+    public BitReader(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Starts reading from buffer at its current position. Unread bits are
+     * discarded.
+     */
+    public BitReader reset(ByteBuffer buffer) {
+        this.buffer = buffer;
+        available = 0;
+        availableBits = 0;
+        return this;
+    }
+
+    /**
+     * @param bits number of bits, from 0 to 32
+     * @return bits as unsigned value
+     */
+    public int readBits(int bits) {
+        if (bits == 0) {
+            return 0;
+        }
+
+        while (availableBits < bits) {
+            available |= (buffer.get() & 0xFFL) << availableBits;
+            availableBits += 8;
+        }
+
+        int value = (int) (available & (0xFFFFFFFFL >>> (32 - bits)));
+        available >>>= bits;
+        availableBits -= bits;
+        return value;
+    }
+
+    public boolean readBoolean() {
+        return readBits(1) != 0;
+    }
+
+    public long readLong() {
+        long low = readBits(32) & 0xFFFFFFFFL;
+        long high = readBits(32) & 0xFFFFFFFFL;
+        return low | (high << 32);
+    }
+
+    public float readFloat() {
+        return Float.intBitsToFloat(readBits(32));
+    }
+
+    public double readDouble() {
+        return Double.longBitsToDouble(readLong());
+    }
+
+    public int readVarInt() {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int group = readBits(8);
+            value |= (group & 0x7F) << shift;
+            if ((group & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("Malformed varint");
+    }
+
+    public long readVarLong() {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            int group = readBits(8);
+            value |= (long) (group & 0x7F) << shift;
+            if ((group & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalStateException("Malformed varlong");
+    }
+
+    public int readSignedVarInt() {
+        int value = readVarInt();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public long readSignedVarLong() {
+        long value = readVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public int readRanged(int min, int max) {
+        return min + readBits(Quantization.bitsForRange(min, max));
+    }
+
+    public float readQuantized(float min, float max, int bits) {
+        return Quantization.dequantize(readBits(bits), min, max, bits);
+    }
+
+    /**
+     * Skips rest of the current byte. After this buffer can be read
+     * directly.
+     */
+    public void align() {
+        available = 0;
+        availableBits = 0;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2009-2011 William Linna
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Arkhados' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package arkhados.net.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes values into ByteBuffer bit by bit. Whole bytes are written to buffer
+ * as soon as they are complete, so at most 7 bits are pending at any time and
+ * flush() leaves buffer positioned right after the last written bit.
+ */
+public class BitWriter {
+
+    private ByteBuffer buffer;
+    private long pending = 0;
+    private int pendingBits = 0;
+
+    public BitWriter() {
+    }
+
+    public BitWriter(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Starts writing into buffer at its current position. Pending bits are
+     * discarded.
+     */
+    public BitWriter reset(ByteBuffer buffer) {
+        this.buffer = buffer;
+        pending = 0;
+        pendingBits = 0;
+        return this;
+    }
+
+    /**
+     * Writes lowest bits of value
+     *
+     * @param bits number of bits, from 0 to 32
+     */
+    public void writeBits(int value, int bits) {
+        if (bits == 0) {
+            return;
+        }
+
+        pending |= (value & (0xFFFFFFFFL >>> (32 - bits))) << pendingBits;
+        pendingBits += bits;
+        while (pendingBits >= 8) {
+            buffer.put((byte) pending);
+            pending >>>= 8;
+            pendingBits -= 8;
+        }
+    }
+
+    public void writeBoolean(boolean value) {
+        writeBits(value ? 1 : 0, 1);
+    }
+
+    public void writeLong(long value) {
+        writeBits((int) value, 32);
+        writeBits((int) (value >>> 32), 32);
+    }
+
+    public void writeFloat(float value) {
+        writeBits(Float.floatToRawIntBits(value), 32);
+    }
+
+    public void writeDouble(double value) {
+        writeLong(Double.doubleToRawLongBits(value));
+    }
+
+    /**
+     * Writes value as unsigned varint: 7 bits per group and continuation bit
+     * if more groups follow. Values below 128 take 8 bits.
+     */
+    public void writeVarInt(int value) {
+        while ((value & ~0x7F) != 0) {
+            writeBits((value & 0x7F) | 0x80, 8);
+            value >>>= 7;
+        }
+        writeBits(value, 8);
+    }
+
+    public void writeVarLong(long value) {
+        while ((value & ~0x7FL) != 0) {
+            writeBits((int) (value & 0x7F) | 0x80, 8);
+            value >>>= 7;
+        }
+        writeBits((int) value, 8);
+    }
+
+    /**
+     * Writes value as zig-zag varint so that small negative values are as
+     * short as small positive ones.
+     */
+    public void writeSignedVarInt(int value) {
+        writeVarInt((value << 1) ^ (value >> 31));
+    }
+
+    public void writeSignedVarLong(long value) {
+        writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Writes value that is known to be within [min, max] using just enough
+     * bits for the range.
+     *
+     * @throws IllegalArgumentException if value is out of range
+     */
+    public void writeRanged(int value, int min, int max) {
+        if (value < min || value > max) {
+            throw new IllegalArgumentException(value + " is not within ["
+                    + min + ", " + max + "]");
+        }
+        writeBits(value - min, Quantization.bitsForRange(min, max));
+    }
+
+    /**
+     * Writes value quantized to bits. Values outside [min, max] are clamped.
+     */
+    public void writeQuantized(float value, float min, float max, int bits) {
+        writeBits(Quantization.quantize(value, min, max, bits), bits);
+    }
+
+    /**
+     * Pads pending bits to full byte and writes it. After this buffer can be
+     * written directly.
+     */
+    public void flush() {
+        if (pendingBits > 0) {
+            buffer.put((byte) pending);
+        }
+        pending = 0;
+        pendingBits = 0;
+    }
+
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+}
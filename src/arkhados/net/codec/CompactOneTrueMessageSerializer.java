@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2009-2011 William Linna
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Arkhados' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package arkhados.net.codec;
+
+import arkhados.net.Command;
+import arkhados.net.CommandEncodingCache;
+import arkhados.net.OneTrueMessage;
+import arkhados.net.OtmIdCommandListPair;
+import arkhados.net.PayloadCompression;
+import arkhados.net.PayloadCompressor;
+import com.jme3.network.serializing.Serializer;
+import com.jme3.network.serializing.SerializerException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes OneTrueMessage header as a bit stream instead of full ints. Ids and
+ * counts are varints, otmIds are written relative to orderNum and receive
+ * masks are written inverted when most of their bits are set. Payload after
+ * the acknowledgement may be compressed like in OneTrueMessageSerializer.
+ * Commands are
+ * written byte aligned with Serializer.writeClassAndObject, so shared
+ * commands are still spliced from CommandEncodingCache and commands
+ * registered with CompactSerializer are bit-packed too.
+ * <p>
+ * Register this on both client and server instead of
+ * OneTrueMessageSerializer. Both ends must use the same serializer.
+ */
+public class CompactOneTrueMessageSerializer extends Serializer {
+
+    private static final int MAX_ACK_DELAY = 0xFFFF;
+    private static final int STREAM_BITS = 3;
+    private static final int COMPRESSED_BIT = 2;
+
+    private static final ThreadLocal<BitWriter> writers =
+            ThreadLocal.withInitial(BitWriter::new);
+    private static final ThreadLocal<BitReader> readers =
+            ThreadLocal.withInitial(BitReader::new);
+
+    private final PayloadCompressor compressor;
+
+    public static void register() {
+        register(null);
+    }
+
+    /**
+     * @param compressor compressor of payloads or null. Both client and
+     * server must use equal compressor.
+     */
+    public static void register(PayloadCompressor compressor) {
+        Serializer.registerClass(OneTrueMessage.class,
+                new CompactOneTrueMessageSerializer(compressor));
+    }
+
+    public CompactOneTrueMessageSerializer() {
+        this(null);
+    }
+
+    public CompactOneTrueMessageSerializer(PayloadCompressor compressor) {
+        this.compressor = compressor;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> T readObject(ByteBuffer data, Class<T> c) throws IOException {
+        BitReader reader = readers.get().reset(data);
+
+        int orderNum = reader.readVarInt();
+        OneTrueMessage otm = new OneTrueMessage(orderNum);
+
+        boolean hasAck = reader.readBoolean();
+        boolean compressed = reader.readBoolean();
+        if (hasAck) {
+            int echoOtmId = reader.readVarInt();
+            int snapshotOtmId = echoOtmId - reader.readSignedVarInt();
+            int ackDelay = reader.readVarInt();
+            otm.setAck(echoOtmId, snapshotOtmId, ackDelay);
+            otm.setAckEchoMask(reader.readVarLong());
+
+            int streams = reader.readBits(8);
+            while (streams != 0) {
+                int streamId = Integer.numberOfTrailingZeros(streams);
+                streams &= streams - 1;
+                int confirmed = orderNum - reader.readSignedVarInt();
+                otm.setStreamAck(streamId, confirmed, readMask(reader));
+            }
+        }
+
+        reader.align();
+        if (compressed) {
+            reader.reset(PayloadCompression.decompress(data, compressor));
+        }
+
+        int guaranteedCount = reader.readVarInt();
+        for (int i = 0; i < guaranteedCount; i++) {
+            int otmId = orderNum - reader.readSignedVarInt();
+            int previousOtmId = otmId - reader.readSignedVarInt();
+            int streamId = reader.readBits(STREAM_BITS);
+            OtmIdCommandListPair pair = new OtmIdCommandListPair(otmId,
+                    previousOtmId, readCommands(reader));
+            pair.setStreamId(streamId);
+            otm.getGuaranteed().add(pair);
+        }
+
+        otm.getUnreliables().addAll(readCommands(reader));
+        reader.align();
+
+        return (T) otm;
+    }
+
+    @Override
+    public void writeObject(ByteBuffer buffer, Object object)
+            throws IOException {
+        OneTrueMessage otm = (OneTrueMessage) object;
+        CommandEncodingCache cache = otm.getEncodingCache();
+        BitWriter writer = writers.get().reset(buffer);
+
+        int orderNum = otm.getOrderNum();
+        writer.writeVarInt(orderNum);
+
+        // Flags start a new byte, so compressed bit can be set afterwards
+        int flagsPosition = buffer.position();
+        writer.writeBoolean(otm.hasAck());
+        writer.writeBoolean(false);
+        if (otm.hasAck()) {
+            int echoOtmId = otm.getAckEchoOtmId();
+            writer.writeVarInt(echoOtmId);
+            writer.writeSignedVarInt(echoOtmId - otm.getAckSnapshotOtmId());
+            writer.writeVarInt(Math.min(otm.getAckDelay(), MAX_ACK_DELAY));
+            writer.writeVarLong(otm.getAckEchoMask());
+
+            int streams = otm.getAckStreams();
+            writer.writeBits(streams, 8);
+            while (streams != 0) {
+                int streamId = Integer.numberOfTrailingZeros(streams);
+                streams &= streams - 1;
+                writer.writeSignedVarInt(orderNum
+                        - otm.getAckConfirmedOtmId(streamId));
+                writeMask(writer, otm.getAckReceivedMask(streamId));
+            }
+        }
+        writer.flush();
+
+        int payloadStart = buffer.position();
+
+        List<OtmIdCommandListPair> guaranteed = otm.getGuaranteed();
+        writer.writeVarInt(guaranteed.size());
+        for (OtmIdCommandListPair pair : guaranteed) {
+            int otmId = pair.getOtmId();
+            writer.writeSignedVarInt(orderNum - otmId);
+            writer.writeSignedVarInt(otmId - pair.getPreviousOtmId());
+            writer.writeBits(pair.getStreamId(), STREAM_BITS);
+            writeCommands(writer, pair.getCommandList(), cache);
+        }
+
+        writeCommands(writer, otm.getUnreliables(), cache);
+        writer.flush();
+
+        if (PayloadCompression.compress(buffer, payloadStart, compressor,
+                otm.getCompressionStats())) {
+            buffer.put(flagsPosition,
+                    (byte) (buffer.get(flagsPosition) | COMPRESSED_BIT));
+        }
+    }
+
+    private static void writeMask(BitWriter writer, long mask) {
+        boolean inverted = Long.compareUnsigned(~mask, mask) < 0;
+        writer.writeBoolean(inverted);
+        writer.writeVarLong(inverted ? ~mask : mask);
+    }
+
+    private static long readMask(BitReader reader) {
+        boolean inverted = reader.readBoolean();
+        long mask = reader.readVarLong();
+        return inverted ? ~mask : mask;
+    }
+
+    private static List<Command> readCommands(BitReader reader)
+            throws IOException {
+        int size = reader.readVarInt();
+        reader.align();
+
+        // Count comes from the wire. Every command takes at least one byte,
+        // so larger counts are malformed and must not size the list.
+        if (size < 0 || size > reader.getBuffer().remaining()) {
+            throw new SerializerException("Invalid command count " + size);
+        }
+        List<Command> commands = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            commands.add((Command) Serializer.readClassAndObject(
+                    reader.getBuffer()));
+        }
+        return commands;
+    }
+
+    private static void writeCommands(BitWriter writer,
+            List<Command> commands, CommandEncodingCache cache)
+            throws IOException {
+        writer.writeVarInt(commands.size());
+        writer.flush();
+
+        ByteBuffer buffer = writer.getBuffer();
+        for (Command command : commands) {
+            if (cache == null || !cache.write(buffer, command)) {
+                int start = buffer.position();
+                Serializer.writeClassAndObject(buffer, command);
+                if (cache != null) {
+                    cache.record(command, buffer, start);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright (c) 2009-2011 William Linna
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Arkhados' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package arkhados.net.codec;
+
+import arkhados.net.CommandPool;
+import arkhados.net.Poolable;
+import com.jme3.network.serializing.Serializer;
+import com.jme3.network.serializing.SerializerException;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Serializes fields of a class like FieldSerializer, but packs them into a
+ * bit stream. Integers are zig-zag varints unless they are Ranged, floats
+ * are written in full unless they are Quantized and booleans take one bit.
+ * Fields of other types are written with Serializer.writeClassAndObject
+ * after aligning the stream to full byte. Written object always ends at
+ * byte boundary.
+ * <p>
+ * Poolable classes are read into instances taken from CommandPool, so
+ * CommandPool.register must be called before register if both are used.
+ */
+public class CompactSerializer extends Serializer {
+
+    private static final int BOOLEAN = 0;
+    private static final int INT = 1;
+    private static final int RANGED_INT = 2;
+    private static final int LONG = 3;
+    private static final int FLOAT = 4;
+    private static final int QUANTIZED_FLOAT = 5;
+    private static final int DOUBLE = 6;
+    private static final int SHORT = 7;
+    private static final int BYTE = 8;
+    private static final int CHAR = 9;
+    private static final int OBJECT = 10;
+
+    private static final ThreadLocal<BitWriter> writers =
+            ThreadLocal.withInitial(BitWriter::new);
+    private static final ThreadLocal<BitReader> readers =
+            ThreadLocal.withInitial(BitReader::new);
+
+    private final Class<?> type;
+    private final Field[] fields;
+    private final int[] kinds;
+    private final float[] mins;
+    private final float[] maxes;
+    private final int[] rangeMins;
+    private final int[] rangeMaxes;
+    private final int[] bits;
+
+    /**
+     * Registers type with serializer generated by SerializerProcessor or with
+     * CompactSerializer if there is none. Both write the same format. Must
+     * be called on both client and server instead of
+     * Serializer.registerClass.
+     *
+     * @throws IllegalArgumentException if Quantized or Ranged annotation of
+     * type is invalid
+     */
+    public static void register(Class<?> type) {
+        Serializer.registerClass(type, create(type));
+    }
+
+    private static Serializer create(Class<?> type) {
+        String name = type.getName();
+        int dot = name.lastIndexOf('.') + 1;
+        name = name.substring(0, dot)
+                + GeneratedNames.serializerOf(name.substring(dot));
+
+        Class<?> generated;
+        try {
+            generated = Class.forName(name, true, type.getClassLoader());
+        } catch (ClassNotFoundException ex) {
+            return new CompactSerializer(type);
+        }
+
+        try {
+            return (Serializer) generated.getDeclaredConstructor()
+                    .newInstance();
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException("Cannot instantiate " + name, ex);
+        }
+    }
+
+    public CompactSerializer(Class<?> type) {
+        this.type = type;
+
+        List<Field> found = new ArrayList<>();
+        for (Class<?> c = type; c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers)
+                        || Modifier.isTransient(modifiers)) {
+                    continue;
+                }
+                field.setAccessible(true);
+                found.add(field);
+            }
+        }
+
+        fields = found.toArray(new Field[found.size()]);
+        Arrays.sort(fields, Comparator.comparing(Field::getName));
+
+        kinds = new int[fields.length];
+        mins = new float[fields.length];
+        maxes = new float[fields.length];
+        rangeMins = new int[fields.length];
+        rangeMaxes = new int[fields.length];
+        bits = new int[fields.length];
+        for (int i = 0; i < fields.length; i++) {
+            describe(i);
+        }
+    }
+
+    private void describe(int i) {
+        Field field = fields[i];
+        Class<?> fieldType = field.getType();
+        Quantized quantized = field.getAnnotation(Quantized.class);
+        Ranged ranged = field.getAnnotation(Ranged.class);
+
+        if (quantized != null && fieldType != float.class) {
+            throw new IllegalArgumentException("Quantized field " + field
+                    + " is not float");
+        }
+        if (ranged != null && fieldType != int.class) {
+            throw new IllegalArgumentException("Ranged field " + field
+                    + " is not int");
+        }
+
+        if (fieldType == boolean.class) {
+            kinds[i] = BOOLEAN;
+        } else if (fieldType == int.class) {
+            if (ranged == null) {
+                kinds[i] = INT;
+            } else if (ranged.min() > ranged.max()) {
+                throw new IllegalArgumentException("Invalid range in " + field);
+            } else {
+                kinds[i] = RANGED_INT;
+                rangeMins[i] = ranged.min();
+                rangeMaxes[i] = ranged.max();
+                bits[i] = Quantization.bitsForRange(ranged.min(),
+                        ranged.max());
+            }
+        } else if (fieldType == long.class) {
+            kinds[i] = LONG;
+        } else if (fieldType == float.class) {
+            if (quantized == null) {
+                kinds[i] = FLOAT;
+            } else if (!Quantization.isValid(quantized)) {
+                throw new IllegalArgumentException("Invalid quantization in "
+                        + field);
+            } else {
+                kinds[i] = QUANTIZED_FLOAT;
+                mins[i] = quantized.min();
+                maxes[i] = quantized.max();
+                bits[i] = quantized.bits();
+            }
+        } else if (fieldType == double.class) {
+            kinds[i] = DOUBLE;
+        } else if (fieldType == short.class) {
+            kinds[i] = SHORT;
+        } else if (fieldType == byte.class) {
+            kinds[i] = BYTE;
+        } else if (fieldType == char.class) {
+            kinds[i] = CHAR;
+        } else {
+            kinds[i] = OBJECT;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public <T> T readObject(ByteBuffer data, Class<T> c) throws IOException {
+        Object object = newInstance();
+        BitReader reader = readers.get().reset(data);
+        try {
+            for (int i = 0; i < fields.length; i++) {
+                readField(reader, object, i);
+            }
+        } catch (IllegalAccessException ex) {
+            throw new SerializerException("Cannot read " + c, ex);
+        }
+        reader.align();
+
+        return (T) object;
+    }
+
+    @Override
+    public void writeObject(ByteBuffer buffer, Object object)
+            throws IOException {
+        BitWriter writer = writers.get().reset(buffer);
+        try {
+            for (int i = 0; i < fields.length; i++) {
+                writeField(writer, object, i);
+            }
+        } catch (IllegalAccessException | IllegalArgumentException ex) {
+            throw new SerializerException("Cannot write " + object, ex);
+        }
+        writer.flush();
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object newInstance() throws SerializerException {
+        if (Poolable.class.isAssignableFrom(type)) {
+            return CommandPool.obtain((Class<Poolable>) type);
+        }
+
+        try {
+            return type.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException ex) {
+            throw new SerializerException("Cannot instantiate " + type, ex);
+        }
+    }
+
+    private void readField(BitReader reader, Object object, int i)
+            throws IOException, IllegalAccessException {
+        Field field = fields[i];
+        switch (kinds[i]) {
+            case BOOLEAN:
+                field.setBoolean(object, reader.readBoolean());
+                break;
+            case INT:
+                field.setInt(object, reader.readSignedVarInt());
+                break;
+            case RANGED_INT:
+                field.setInt(object, rangeMins[i] + reader.readBits(bits[i]));
+                break;
+            case LONG:
+                field.setLong(object, reader.readSignedVarLong());
+                break;
+            case FLOAT:
+                field.setFloat(object, reader.readFloat());
+                break;
+            case QUANTIZED_FLOAT:
+                field.setFloat(object,
+                        reader.readQuantized(mins[i], maxes[i], bits[i]));
+                break;
+            case DOUBLE:
+                field.setDouble(object, reader.readDouble());
+                break;
+            case SHORT:
+                field.setShort(object, (short) reader.readSignedVarInt());
+                break;
+            case BYTE:
+                field.setByte(object, (byte) reader.readBits(8));
+                break;
+            case CHAR:
+                field.setChar(object, (char) reader.readVarInt());
+                break;
+            default:
+                reader.align();
+                field.set(object,
+                        Serializer.readClassAndObject(reader.getBuffer()));
+        }
+    }
+
+    private void writeField(BitWriter writer, Object object, int i)
+            throws IOException, IllegalAccessException {
+        Field field = fields[i];
+        switch (kinds[i]) {
+            case BOOLEAN:
+                writer.writeBoolean(field.getBoolean(object));
+                break;
+            case INT:
+                writer.writeSignedVarInt(field.getInt(object));
+                break;
+            case RANGED_INT:
+                writer.writeRanged(field.getInt(object), rangeMins[i],
+                        rangeMaxes[i]);
+                break;
+            case LONG:
+                writer.writeSignedVarLong(field.getLong(object));
+                break;
+            case FLOAT:
+                writer.writeFloat(field.getFloat(object));
+                break;
+            case QUANTIZED_FLOAT:
+                writer.writeQuantized(field.getFloat(object), mins[i],
+                        maxes[i], bits[i]);
+                break;
+            case DOUBLE:
+                writer.writeDouble(field.getDouble(object));
+                break;
+            case SHORT:
+                writer.writeSignedVarInt(field.getShort(object));
+                break;
+            case BYTE:
+                writer.writeBits(field.getByte(object), 8);
+                break;
+            case CHAR:
+                writer.writeVarInt(field.getChar(object));
+                break;
+            default:
+                writer.flush();
+                Serializer.writeClassAndObject(writer.getBuffer(),
+                        field.get(object));
+        }
+    }
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2009-2011 William Linna
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Arkhados' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package arkhados.net.codec;
+
+/**
+ * Conversions between floats and fixed size integers used by Quantized
+ * fields.
+ */
+public final class Quantization {
+
+    private Quantization() {
+    }
+
+    /**
+     * @return number of bits needed to write any value of [min, max]
+     */
+    public static int bitsForRange(int min, int max) {
+        long span = (long) max - min;
+        return 64 - Long.numberOfLeadingZeros(span);
+    }
+
+    public static int quantize(float value, float min, float max, int bits) {
+        int steps = (1 << bits) - 1;
+        if (!(value > min)) {
+            // NaN is written as min
+            return 0;
+        }
+        if (value >= max) {
+            return steps;
+        }
+        return Math.round((value - min) / (max - min) * steps);
+    }
+
+    public static float dequantize(int quantized, float min, float max,
+            int bits) {
+        int steps = (1 << bits) - 1;
+        return min + (max - min) * quantized / steps;
+    }
+
+    /**
+     * @return true if range of quantized is finite and non-empty and bits is
+     * from 1 to 24
+     */
+    public static boolean isValid(Quantized quantized) {
+        return quantized.bits() >= 1 && quantized.bits() <= 24
+                && quantized.min() < quantized.max()
+                && !Float.isInfinite(quantized.min())
+                && !Float.isInfinite(quantized.max());
+    }
+
+    /**
+     * @return largest error quantization to bits can cause in [min, max]
+     */
+    public static float precision(float min, float max, int bits) {
+        return (max - min) / ((1 << bits) - 1) / 2f;
+    }
+}
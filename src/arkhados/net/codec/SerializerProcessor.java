@@ -0,0 +1,383 @@
+/*
+ * Copyright (c) 2009-2011 William Linna
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Arkhados' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package arkhados.net.codec;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/**
+ * Generates serializer class for each @Serializable Command. Generated
+ * serializer writes the same format as CompactSerializer, but accesses
+ * fields directly instead of through reflection. CompactSerializer.register
+ * picks generated serializer automatically.
+ * <p>
+ * Fields must not be private, because generated class is in the same package
+ * as the Command. Classes that have private fields are left to
+ * CompactSerializer. Ack, SnapshotCommand and SnapshotDelta all keep their
+ * state in private fields, so nothing is generated for the commands of this
+ * library itself; the processor only pays off for game commands with
+ * package-private or public fields.
+ * <p>
+ * Generated serializers are only looked up by CompactSerializer.register.
+ * Classes registered with Serializer.registerClass keep using jME's
+ * FieldSerializer whether or not a serializer was generated for them.
+ */
+@SupportedAnnotationTypes("com.jme3.network.serializing.Serializable")
+public class SerializerProcessor extends AbstractProcessor {
+
+    private static final String COMMAND = "arkhados.net.Command";
+    private static final String POOLABLE = "arkhados.net.Poolable";
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations,
+            RoundEnvironment roundEnv) {
+        TypeElement command = processingEnv.getElementUtils()
+                .getTypeElement(COMMAND);
+        if (command == null) {
+            return false;
+        }
+
+        for (TypeElement annotation : annotations) {
+            for (Element element
+                    : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind() != ElementKind.CLASS
+                        || !processingEnv.getTypeUtils().isAssignable(
+                                element.asType(), command.asType())) {
+                    continue;
+                }
+
+                TypeElement type = (TypeElement) element;
+                List<VariableElement> fields = findFields(type);
+                if (fields != null) {
+                    generate(type, fields);
+                }
+            }
+        }
+
+        // @Serializable is jME's annotation, so let others see it too
+        return false;
+    }
+
+    /**
+     * @return serialized fields sorted by name or null if type cannot have
+     * generated serializer
+     */
+    private List<VariableElement> findFields(TypeElement type) {
+        if (type.getModifiers().contains(Modifier.ABSTRACT)
+                || type.getModifiers().contains(Modifier.PRIVATE)
+                || (type.getNestingKind().isNested()
+                && !type.getModifiers().contains(Modifier.STATIC))) {
+            note(type, "is not instantiable");
+            return null;
+        }
+
+        if (!hasAccessibleConstructor(type)) {
+            note(type, "has no accessible no-arg constructor");
+            return null;
+        }
+
+        PackageElement pkg = processingEnv.getElementUtils()
+                .getPackageOf(type);
+        List<VariableElement> fields = new ArrayList<>();
+        for (TypeElement c = type; c != null; c = superclass(c)) {
+            for (VariableElement field
+                    : ElementFilter.fieldsIn(c.getEnclosedElements())) {
+                Set<Modifier> modifiers = field.getModifiers();
+                if (modifiers.contains(Modifier.STATIC)
+                        || modifiers.contains(Modifier.TRANSIENT)) {
+                    continue;
+                }
+
+                boolean samePackage = processingEnv.getElementUtils()
+                        .getPackageOf(c).equals(pkg);
+                if (modifiers.contains(Modifier.PRIVATE)
+                        || modifiers.contains(Modifier.FINAL)
+                        || (!samePackage
+                        && !modifiers.contains(Modifier.PUBLIC))) {
+                    note(type, "has inaccessible field "
+                            + field.getSimpleName());
+                    return null;
+                }
+                fields.add(field);
+            }
+        }
+
+        fields.sort(Comparator.comparing(f -> f.getSimpleName().toString()));
+        return fields;
+    }
+
+    private boolean hasAccessibleConstructor(TypeElement type) {
+        for (ExecutableElement constructor
+                : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            if (constructor.getParameters().isEmpty()
+                    && !constructor.getModifiers().contains(Modifier.PRIVATE)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private TypeElement superclass(TypeElement type) {
+        TypeMirror superclass = type.getSuperclass();
+        if (superclass.getKind() != TypeKind.DECLARED) {
+            return null;
+        }
+
+        TypeElement element =
+                (TypeElement) ((DeclaredType) superclass).asElement();
+        if (element.getQualifiedName().contentEquals("java.lang.Object")) {
+            return null;
+        }
+        return element;
+    }
+
+    private void note(TypeElement type, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE,
+                type.getQualifiedName() + " " + message
+                + ", using CompactSerializer", type);
+    }
+
+    private void generate(TypeElement type, List<VariableElement> fields) {
+        String pkg = processingEnv.getElementUtils().getPackageOf(type)
+                .getQualifiedName().toString();
+        String binaryName = processingEnv.getElementUtils()
+                .getBinaryName(type).toString();
+        String simpleName = GeneratedNames.serializerOf(
+                pkg.isEmpty() ? binaryName
+                        : binaryName.substring(pkg.length() + 1));
+        String typeName = type.getQualifiedName().toString();
+        boolean poolable = processingEnv.getTypeUtils().isAssignable(
+                type.asType(), processingEnv.getElementUtils()
+                        .getTypeElement(POOLABLE).asType());
+
+        List<String> reads = new ArrayList<>();
+        List<String> writes = new ArrayList<>();
+        for (VariableElement field : fields) {
+            if (!describe(field, reads, writes)) {
+                return;
+            }
+        }
+
+        String name = pkg.isEmpty() ? simpleName : pkg + "." + simpleName;
+        try (PrintWriter out = new PrintWriter(processingEnv.getFiler()
+                .createSourceFile(name, type).openWriter())) {
+            if (!pkg.isEmpty()) {
+                out.println("package " + pkg + ";");
+                out.println();
+            }
+            out.println("/**");
+            out.println(" * Generated by SerializerProcessor from "
+                    + typeName + ". Do not edit.");
+            out.println(" */");
+            out.println("public class " + simpleName
+                    + " extends com.jme3.network.serializing.Serializer {");
+            out.println();
+            out.println("    private static final ThreadLocal"
+                    + "<arkhados.net.codec.BitWriter> writers =");
+            out.println("            ThreadLocal.withInitial("
+                    + "arkhados.net.codec.BitWriter::new);");
+            out.println("    private static final ThreadLocal"
+                    + "<arkhados.net.codec.BitReader> readers =");
+            out.println("            ThreadLocal.withInitial("
+                    + "arkhados.net.codec.BitReader::new);");
+            out.println();
+            out.println("    @SuppressWarnings(\"unchecked\")");
+            out.println("    @Override");
+            out.println("    public <T> T readObject(java.nio.ByteBuffer data,"
+                    + " Class<T> c) throws java.io.IOException {");
+            out.println("        " + typeName + " object = "
+                    + (poolable
+                            ? "arkhados.net.CommandPool.obtain(" + typeName
+                            + ".class);"
+                            : "new " + typeName + "();"));
+            out.println("        arkhados.net.codec.BitReader reader ="
+                    + " readers.get().reset(data);");
+            for (String read : reads) {
+                out.println("        " + read);
+            }
+            out.println("        reader.align();");
+            out.println("        return (T) object;");
+            out.println("    }");
+            out.println();
+            out.println("    @Override");
+            out.println("    public void writeObject(java.nio.ByteBuffer"
+                    + " buffer, Object o) throws java.io.IOException {");
+            out.println("        " + typeName + " object = (" + typeName
+                    + ") o;");
+            out.println("        arkhados.net.codec.BitWriter writer ="
+                    + " writers.get().reset(buffer);");
+            out.println("        try {");
+            for (String write : writes) {
+                out.println("            " + write);
+            }
+            out.println("        } catch (IllegalArgumentException ex) {");
+            out.println("            throw new com.jme3.network.serializing"
+                    + ".SerializerException(\"Cannot write \" + object, ex);");
+            out.println("        }");
+            out.println("        writer.flush();");
+            out.println("    }");
+            out.println("}");
+        } catch (IOException ex) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Cannot generate " + name + ": " + ex, type);
+        }
+    }
+
+    /**
+     * Adds statements that read and write field in the same format as
+     * CompactSerializer.
+     *
+     * @return false if field has invalid annotation
+     */
+    private boolean describe(VariableElement field, List<String> reads,
+            List<String> writes) {
+        String name = "object." + field.getSimpleName();
+        TypeKind kind = field.asType().getKind();
+        Quantized quantized = field.getAnnotation(Quantized.class);
+        Ranged ranged = field.getAnnotation(Ranged.class);
+
+        if (quantized != null && kind != TypeKind.FLOAT) {
+            return error(field, "Quantized field is not float");
+        }
+        if (ranged != null && kind != TypeKind.INT) {
+            return error(field, "Ranged field is not int");
+        }
+
+        switch (kind) {
+            case BOOLEAN:
+                reads.add(name + " = reader.readBoolean();");
+                writes.add("writer.writeBoolean(" + name + ");");
+                break;
+            case INT:
+                if (ranged == null) {
+                    reads.add(name + " = reader.readSignedVarInt();");
+                    writes.add("writer.writeSignedVarInt(" + name + ");");
+                } else if (ranged.min() > ranged.max()) {
+                    return error(field, "Invalid range");
+                } else {
+                    String min = intLiteral(ranged.min());
+                    String max = intLiteral(ranged.max());
+                    reads.add(name + " = reader.readRanged(" + min + ", "
+                            + max + ");");
+                    writes.add("writer.writeRanged(" + name + ", " + min
+                            + ", " + max + ");");
+                }
+                break;
+            case LONG:
+                reads.add(name + " = reader.readSignedVarLong();");
+                writes.add("writer.writeSignedVarLong(" + name + ");");
+                break;
+            case FLOAT:
+                if (quantized == null) {
+                    reads.add(name + " = reader.readFloat();");
+                    writes.add("writer.writeFloat(" + name + ");");
+                } else if (!Quantization.isValid(quantized)) {
+                    return error(field, "Invalid quantization");
+                } else {
+                    String args = floatLiteral(quantized.min()) + ", "
+                            + floatLiteral(quantized.max()) + ", "
+                            + quantized.bits();
+                    reads.add(name + " = reader.readQuantized(" + args
+                            + ");");
+                    writes.add("writer.writeQuantized(" + name + ", " + args
+                            + ");");
+                }
+                break;
+            case DOUBLE:
+                reads.add(name + " = reader.readDouble();");
+                writes.add("writer.writeDouble(" + name + ");");
+                break;
+            case SHORT:
+                reads.add(name + " = (short) reader.readSignedVarInt();");
+                writes.add("writer.writeSignedVarInt(" + name + ");");
+                break;
+            case BYTE:
+                reads.add(name + " = (byte) reader.readBits(8);");
+                writes.add("writer.writeBits(" + name + ", 8);");
+                break;
+            case CHAR:
+                reads.add(name + " = (char) reader.readVarInt();");
+                writes.add("writer.writeVarInt(" + name + ");");
+                break;
+            default:
+                String type = processingEnv.getTypeUtils()
+                        .erasure(field.asType()).toString();
+                reads.add("reader.align();");
+                reads.add(name + " = (" + type + ") com.jme3.network"
+                        + ".serializing.Serializer.readClassAndObject(data);");
+                writes.add("writer.flush();");
+                writes.add("com.jme3.network.serializing.Serializer"
+                        + ".writeClassAndObject(buffer, " + name + ");");
+        }
+        return true;
+    }
+
+    private boolean error(VariableElement field, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                message, field);
+        return false;
+    }
+
+    private static String intLiteral(int value) {
+        return value == Integer.MIN_VALUE ? "Integer.MIN_VALUE"
+                : Integer.toString(value);
+    }
+
+    private static String floatLiteral(float value) {
+        return Float.toString(value) + "f";
+    }
+}
@@ -0,0 +1,72 @@
+package arkhados.net.connection;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps released ByteBuffers of one size for reuse. Safe to use from any
+ * thread. Buffer must not be used after it has been released.
+ * <p>
+ * Free buffers are kept in an array so that lease and release do not
+ * allocate.
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    private final boolean direct;
+    private final ArrayBlockingQueue<ByteBuffer> free;
+    private final AtomicInteger allocated = new AtomicInteger();
+
+    /**
+     * @param capacity maximum number of free buffers kept
+     * @param direct whether to allocate direct buffers
+     */
+    public BufferPool(int bufferSize, int capacity, boolean direct) {
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+        free = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * @return cleared buffer of bufferSize bytes
+     */
+    public ByteBuffer lease() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            allocated.incrementAndGet();
+            return direct ? ByteBuffer.allocateDirect(bufferSize)
+                    : ByteBuffer.allocate(bufferSize);
+        }
+
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns buffer leased from this pool. Other buffers are ignored.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() != bufferSize || buffer.isDirect() != direct) {
+            return;
+        }
+
+        // Dropped if pool is full
+        free.offer(buffer);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getFreeCount() {
+        return free.size();
+    }
+
+    /**
+     * @return number of buffers allocated because pool was empty
+     */
+    public int getAllocatedCount() {
+        return allocated.get();
+    }
+}
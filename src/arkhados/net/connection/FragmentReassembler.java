@@ -0,0 +1,148 @@
+package arkhados.net.connection;
+
+import com.jme3.network.Message;
+import com.jme3.network.serializing.Serializer;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Joins MessageFragments of one source back into messages. Incomplete
+ * messages are dropped after timeout, at most maxPending of them are kept
+ * and messages larger than maxMessageSize are dropped so that a misbehaving
+ * source cannot use up memory.
+ */
+public class FragmentReassembler {
+
+    private static final Logger log =
+            Logger.getLogger(FragmentReassembler.class.getName());
+
+    private final Map<Integer, Pending> pending = new HashMap<>();
+    private long timeout = 1000;
+    private int maxPending = 16;
+    private int maxMessageSize = 1 << 20;
+    // 1 MB in fragments of default 1200 byte datagrams takes 885
+    private int maxFragments = 1024;
+
+    private static class Pending {
+
+        final byte[][] pieces;
+        final long created;
+        int received = 0;
+        int length = 0;
+
+        Pending(int count, long created) {
+            pieces = new byte[count][];
+            this.created = created;
+        }
+    }
+
+    /**
+     * @return whole message if fragment completed it, otherwise null
+     */
+    public synchronized Message add(MessageFragment fragment)
+            throws IOException {
+        long now = System.currentTimeMillis();
+        expire(now);
+
+        int count = fragment.getCount();
+        int index = fragment.getIndex();
+        if (count < 1 || index >= count) {
+            log.log(Level.WARNING, "Invalid fragment {0}/{1}",
+                    new Object[]{index, count});
+            return null;
+        }
+        // Checked before anything is allocated for the message. Every
+        // fragment but the last carries the same amount of data, so such a
+        // fragment tells the least size of the whole message.
+        int length = fragment.getData().length;
+        if (count > maxFragments || (index < count - 1
+                && (long) (count - 1) * length >= maxMessageSize)) {
+            log.log(Level.FINE, "Dropping message {0} of {1} fragments",
+                    new Object[]{fragment.getMessageId(), count});
+            return null;
+        }
+
+        Pending message = pending.get(fragment.getMessageId());
+        if (message == null) {
+            if (pending.size() >= maxPending) {
+                log.log(Level.FINE, "Too many incomplete messages, dropping"
+                        + " message {0}", fragment.getMessageId());
+                return null;
+            }
+            message = new Pending(count, now);
+            pending.put(fragment.getMessageId(), message);
+        } else if (message.pieces.length != count) {
+            return null;
+        }
+
+        if (message.pieces[index] != null) {
+            return null;
+        }
+        message.pieces[index] = fragment.getData();
+        message.length += fragment.getData().length;
+        if (message.length > maxMessageSize) {
+            pending.remove(fragment.getMessageId());
+            log.log(Level.FINE, "Message {0} exceeds maxMessageSize,"
+                    + " dropping it", fragment.getMessageId());
+            return null;
+        }
+        if (++message.received < count) {
+            return null;
+        }
+
+        pending.remove(fragment.getMessageId());
+
+        ByteBuffer whole = ByteBuffer.allocate(message.length);
+        for (byte[] piece : message.pieces) {
+            whole.put(piece);
+        }
+        whole.flip();
+        return (Message) Serializer.readClassAndObject(whole);
+    }
+
+    private void expire(long now) {
+        for (Iterator<Pending> it = pending.values().iterator();
+                it.hasNext();) {
+            if (now - it.next().created > timeout) {
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        pending.clear();
+    }
+
+    /**
+     * @param timeout milliseconds after which incomplete message is dropped
+     */
+    public synchronized void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    public synchronized void setMaxPending(int maxPending) {
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * @param maxMessageSize largest reassembled message in bytes. Should match
+     * maxMessageSize of the other end's MessageFragmenter.
+     */
+    public synchronized void setMaxMessageSize(int maxMessageSize) {
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    /**
+     * @param maxFragments most fragments of one message. Should be at least
+     * maxMessageSize divided by data in each fragment, which is 14 bytes
+     * less than maxDatagramSize of the other end's MessageFragmenter.
+     */
+    public synchronized void setMaxFragments(int maxFragments) {
+        this.maxFragments = maxFragments;
+    }
+}
@@ -0,0 +1,72 @@
+package arkhados.net.connection;
+
+import com.jme3.network.Message;
+import com.jme3.network.serializing.Serializer;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads messages framed by MessageProtocol.messageToBuffer straight from a
+ * received datagram. Unlike MessageProtocol it never buffers partial
+ * messages, which cannot be completed over UDP anyway, so one decoder can
+ * be reused for every datagram its thread receives.
+ */
+public class MessageDecoder {
+
+    private static final int LENGTH_SIZE = 2;
+
+    private ByteBuffer data;
+    private int limit;
+    private int count;
+
+    /**
+     * Starts decoding data from its position to its limit
+     */
+    public void reset(ByteBuffer data) {
+        this.data = data;
+        limit = data.limit();
+        count = 0;
+    }
+
+    /**
+     * @return next message or null if there are no more complete messages
+     */
+    public Message next() throws IOException {
+        if (data == null || limit - data.position() < LENGTH_SIZE) {
+            return null;
+        }
+
+        int start = data.position();
+        int length = data.getShort(start) & 0xFFFF;
+        int end = start + LENGTH_SIZE + length;
+        if (end > limit) {
+            return null;
+        }
+
+        // Message's serializer must not read past its own bytes
+        data.position(start + LENGTH_SIZE);
+        data.limit(end);
+        try {
+            Message message = (Message) Serializer.readClassAndObject(data);
+            ++count;
+            return message;
+        } finally {
+            data.limit(limit);
+            data.position(end);
+        }
+    }
+
+    /**
+     * @return true if data ends with an incomplete message
+     */
+    public boolean hasIncomplete() {
+        return data != null && data.position() < limit;
+    }
+
+    /**
+     * @return number of messages decoded since reset
+     */
+    public int getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,82 @@
+package arkhados.net.connection;
+
+import com.jme3.network.AbstractMessage;
+import com.jme3.network.serializing.Serializable;
+import com.jme3.network.serializing.Serializer;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * One datagram-sized piece of a message that was too large to be sent in one
+ * datagram. Pieces are joined by FragmentReassembler.
+ */
+@Serializable
+public class MessageFragment extends AbstractMessage {
+
+    private int messageId;
+    private int index;
+    private int count;
+    private byte[] data;
+
+    /**
+     * Registers MessageFragment with its own serializer. Must be called on
+     * both client and server.
+     */
+    public static void register() {
+        Serializer.registerClass(MessageFragment.class,
+                new FragmentSerializer());
+    }
+
+    public MessageFragment() {
+    }
+
+    public MessageFragment(int messageId, int index, int count, byte[] data) {
+        super(false);
+        this.messageId = messageId;
+        this.index = index;
+        this.count = count;
+        this.data = data;
+    }
+
+    public int getMessageId() {
+        return messageId;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public static class FragmentSerializer extends Serializer {
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public <T> T readObject(ByteBuffer buffer, Class<T> c)
+                throws IOException {
+            int messageId = buffer.getInt();
+            int index = buffer.getShort() & 0xFFFF;
+            int count = buffer.getShort() & 0xFFFF;
+            byte[] data = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(data);
+            return (T) new MessageFragment(messageId, index, count, data);
+        }
+
+        @Override
+        public void writeObject(ByteBuffer buffer, Object object)
+                throws IOException {
+            MessageFragment fragment = (MessageFragment) object;
+            buffer.putInt(fragment.messageId);
+            buffer.putShort((short) fragment.index);
+            buffer.putShort((short) fragment.count);
+            buffer.putShort((short) fragment.data.length);
+            buffer.put(fragment.data);
+        }
+    }
+}
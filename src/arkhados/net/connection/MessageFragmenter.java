@@ -0,0 +1,231 @@
+package arkhados.net.connection;
+
+import com.jme3.network.Message;
+import com.jme3.network.base.MessageProtocol;
+import com.jme3.network.serializing.Serializer;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Turns messages into datagrams. Message that fits into maxDatagramSize is
+ * written exactly like MessageProtocol would write it. Larger messages are
+ * split into MessageFragments so that they are neither limited to 32767
+ * bytes nor fragmented by IP, which would multiply packet loss.
+ * <p>
+ * writePooled and writeLeased serialize messages straight into datagram
+ * sized buffers taken from a BufferPool, so sending a message that fits
+ * into one datagram allocates nothing once the pool is warm.
+ */
+public class MessageFragmenter {
+
+    /**
+     * Length prefix, class id and header fields of MessageFragment
+     */
+    private static final int FRAGMENT_OVERHEAD = 2 + 2 + 4 + 2 + 2 + 2;
+    private static final int MAX_FRAGMENTS = 0xFFFF;
+    private static final int POOL_CAPACITY = 256;
+    public static final int DEFAULT_MAX_DATAGRAM_SIZE = 1200;
+
+    private final ThreadLocal<ByteBuffer> buffers =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(65536));
+    private final AtomicInteger nextMessageId = new AtomicInteger();
+    private volatile int maxDatagramSize = DEFAULT_MAX_DATAGRAM_SIZE;
+    private volatile BufferPool datagrams =
+            new BufferPool(maxDatagramSize, POOL_CAPACITY, false);
+    private volatile int maxMessageSize = 1 << 20;
+
+    /**
+     * Serializes message and passes resulting datagrams to out. Each
+     * datagram has its own array so they can be sent asynchronously.
+     *
+     * @throws BufferOverflowException if message is larger than
+     * maxMessageSize
+     */
+    public void write(Message message, Consumer<ByteBuffer> out)
+            throws IOException {
+        ByteBuffer payload = serialize(message);
+        int length = payload.remaining();
+
+        if (length + 2 <= maxDatagramSize) {
+            ByteBuffer datagram = ByteBuffer.allocate(length + 2);
+            datagram.putShort((short) length);
+            datagram.put(payload);
+            datagram.flip();
+            out.accept(datagram);
+            return;
+        }
+
+        int chunk = maxFragmentData(length);
+        int count = (length + chunk - 1) / chunk;
+
+        int messageId = nextMessageId.getAndIncrement();
+        byte[] bytes = payload.array();
+        for (int i = 0; i < count; i++) {
+            int from = payload.position() + i * chunk;
+            int to = Math.min(from + chunk, payload.limit());
+            MessageFragment fragment = new MessageFragment(messageId, i,
+                    count, Arrays.copyOfRange(bytes, from, to));
+            out.accept(MessageProtocol.messageToBuffer(fragment, null));
+        }
+    }
+
+    /**
+     * Like write, but datagrams are leased from pool. out must be done with
+     * each datagram when it returns, because the buffer is reused right
+     * after that.
+     */
+    public void writePooled(Message message, Consumer<ByteBuffer> out)
+            throws IOException {
+        write(message, out, true);
+    }
+
+    /**
+     * Like write, but datagrams are leased from pool and out takes
+     * ownership of them. out must pass each datagram to release once it has
+     * been sent.
+     */
+    public void writeLeased(Message message, Consumer<ByteBuffer> out)
+            throws IOException {
+        write(message, out, false);
+    }
+
+    /**
+     * Returns datagram given by writeLeased to pool
+     */
+    public void release(ByteBuffer datagram) {
+        datagrams.release(datagram);
+    }
+
+    private void write(Message message, Consumer<ByteBuffer> out,
+            boolean release) throws IOException {
+        BufferPool pool = datagrams;
+        ByteBuffer datagram = pool.lease();
+        boolean fits = false;
+        try {
+            MessageProtocol.messageToBuffer(message, datagram);
+            fits = true;
+        } catch (BufferOverflowException ex) {
+            // Too large for one datagram, fragmented below
+        } finally {
+            if (!fits) {
+                pool.release(datagram);
+            }
+        }
+
+        if (fits) {
+            send(datagram, out, pool, release);
+            return;
+        }
+
+        ByteBuffer payload = serialize(message);
+        int length = payload.remaining();
+
+        // Serializers may write a smaller body once they have room, for
+        // example compressed. Pool's size is maxDatagramSize it was made for.
+        if (length + 2 <= pool.getBufferSize()) {
+            datagram = pool.lease();
+            datagram.putShort((short) length);
+            datagram.put(payload);
+            datagram.flip();
+            send(datagram, out, pool, release);
+            return;
+        }
+
+        int chunk = maxFragmentData(length);
+        int count = (length + chunk - 1) / chunk;
+
+        int messageId = nextMessageId.getAndIncrement();
+        byte[] bytes = payload.array();
+        for (int i = 0; i < count; i++) {
+            int from = payload.position() + i * chunk;
+            int to = Math.min(from + chunk, payload.limit());
+            MessageFragment fragment = new MessageFragment(messageId, i,
+                    count, Arrays.copyOfRange(bytes, from, to));
+            datagram = pool.lease();
+            try {
+                MessageProtocol.messageToBuffer(fragment, datagram);
+            } catch (RuntimeException ex) {
+                pool.release(datagram);
+                throw ex;
+            }
+            send(datagram, out, pool, release);
+        }
+    }
+
+    private static void send(ByteBuffer datagram, Consumer<ByteBuffer> out,
+            BufferPool pool, boolean release) {
+        if (!release) {
+            out.accept(datagram);
+            return;
+        }
+
+        try {
+            out.accept(datagram);
+        } finally {
+            pool.release(datagram);
+        }
+    }
+
+    /**
+     * @return bytes of payload in each fragment
+     * @throws BufferOverflowException if payload needs too many fragments
+     */
+    private int maxFragmentData(int length) {
+        int chunk = maxDatagramSize - FRAGMENT_OVERHEAD;
+        if ((length + chunk - 1) / chunk > MAX_FRAGMENTS) {
+            throw new BufferOverflowException();
+        }
+        return chunk;
+    }
+
+    private ByteBuffer serialize(Message message) throws IOException {
+        ByteBuffer buffer = buffers.get();
+        while (true) {
+            buffer.clear();
+            try {
+                Serializer.writeClassAndObject(buffer, message);
+                buffer.flip();
+                return buffer;
+            } catch (BufferOverflowException ex) {
+                if (buffer.capacity() >= maxMessageSize) {
+                    throw ex;
+                }
+                buffer = ByteBuffer.allocate(Math.min(buffer.capacity() * 2,
+                        maxMessageSize));
+                buffers.set(buffer);
+            }
+        }
+    }
+
+    public int getMaxDatagramSize() {
+        return maxDatagramSize;
+    }
+
+    /**
+     * @param maxDatagramSize largest datagram that is sent without
+     * fragmenting. Should stay below path MTU minus IP and UDP headers.
+     * RetransmissionScheduler's mtuBudget should be changed with it.
+     */
+    public void setMaxDatagramSize(int maxDatagramSize) {
+        if (maxDatagramSize <= FRAGMENT_OVERHEAD) {
+            throw new IllegalArgumentException("maxDatagramSize must be"
+                    + " larger than " + FRAGMENT_OVERHEAD);
+        }
+        this.maxDatagramSize = Math.min(maxDatagramSize, 32767);
+        // Buffers of old size are not accepted back by the new pool
+        datagrams = new BufferPool(this.maxDatagramSize, POOL_CAPACITY,
+                false);
+    }
+
+    public int getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    public void setMaxMessageSize(int maxMessageSize) {
+        this.maxMessageSize = maxMessageSize;
+    }
+}
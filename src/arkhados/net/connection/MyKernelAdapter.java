@@ -41,9 +41,12 @@ import com.jme3.network.kernel.EndpointEvent;
 import com.jme3.network.kernel.Envelope;
 import com.jme3.network.kernel.Kernel;
 import com.jme3.network.message.ClientRegistrationMessage;
+import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -62,7 +65,8 @@ import java.util.logging.Logger;
  * @version $Revision$
  * @author Paul Speed
  */
-public class MyKernelAdapter extends Thread {
+public class MyKernelAdapter extends Thread
+        implements NioUdpKernel.DatagramListener {
 
     static final Logger log = Logger.getLogger(MyKernelAdapter.class.getName());
 
@@ -71,9 +75,12 @@ public class MyKernelAdapter extends Thread {
     private final MessageListener<HostedConnection> messageDispatcher;
     private final AtomicBoolean go = new AtomicBoolean(true);
 
-    // Keeps track of the in-progress messages that are received
-    // on reliable connections
-    private final Map<Endpoint, MessageProtocol> messageBuffers = new ConcurrentHashMap<>();
+    // Datagrams are decoded and dispatched by the shard of their endpoint.
+    // With one shard this thread does it itself.
+    private Shard[] shards = {new Shard(0, 0)};
+
+    // Queued instead of data when endpoint has been closed
+    private static final ByteBuffer CLOSED = ByteBuffer.allocate(0);
 
     // Marks the messages as reliable or not if they came
     // through this connector.
@@ -96,6 +103,48 @@ public class MyKernelAdapter extends Thread {
         kernel.initialize();
     }
 
+    /**
+     * Sets number of threads that decode and dispatch received messages.
+     * Messages of one endpoint are always handled by the same worker, so
+     * they are dispatched in the order they were received. Must be called
+     * before start().
+     * <p>
+     * With more than one worker, messages of different endpoints are
+     * dispatched concurrently. The message dispatcher, and every
+     * CommandHandler registered with DefaultReceiver behind it, is then
+     * called from several threads at once and must be thread safe.
+     *
+     * @param queueCapacity most datagrams waiting for each worker. Datagrams
+     * that do not fit are dropped.
+     */
+    public void setWorkerCount(int count, int queueCapacity) {
+        if (isAlive()) {
+            throw new IllegalStateException("Adapter is already started.");
+        }
+        if (count < 1) {
+            throw new IllegalArgumentException("Worker count must be >= 1");
+        }
+
+        shards = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            shards[i] = new Shard(i, count > 1 ? queueCapacity : 0);
+        }
+    }
+
+    public int getWorkerCount() {
+        return shards.length;
+    }
+
+    @Override
+    public synchronized void start() {
+        if (shards.length > 1) {
+            for (Shard shard : shards) {
+                shard.start();
+            }
+        }
+        super.start();
+    }
+
     public void broadcast(Filter<? super Endpoint> filter, ByteBuffer data,
             boolean copy) {
         kernel.broadcast(filter, data, false, copy);
@@ -108,6 +157,15 @@ public class MyKernelAdapter extends Thread {
         kernel.terminate();
 
         join();
+
+        if (shards.length > 1) {
+            for (Shard shard : shards) {
+                shard.interrupt();
+            }
+            for (Shard shard : shards) {
+                shard.join();
+            }
+        }
     }
 
     protected void reportError(Endpoint p, Object context, Exception e) {
@@ -126,13 +184,18 @@ public class MyKernelAdapter extends Thread {
     }
 
     protected void connectionClosed(Endpoint p) {
-        // Remove any message buffer we've been accumulating 
-        // on behalf of this endpoing
-        messageBuffers.remove(p);
+        Shard shard = shardOf(p);
+        if (shards.length > 1) {
+            // Let the worker dispatch what it still has from p first
+            shard.enqueue(p, CLOSED, true);
+            return;
+        }
 
-        log.log(Level.FINE, "Buffers size:{0}", messageBuffers.size());
+        shard.connectionClosed(p);
+    }
 
-        server.connectionClosed(p);
+    private Shard shardOf(Endpoint p) {
+        return shards[Math.floorMod(Long.hashCode(p.getId()), shards.length)];
     }
 
     /**
@@ -180,6 +243,17 @@ public class MyKernelAdapter extends Thread {
                 }
                 return;
             }
+
+            // Only connected endpoints get reassembly buffers so random
+            // packets cannot fill memory
+            if (m instanceof MessageFragment) {
+                m = shardOf(p).reassemblers.computeIfAbsent(p, e -> new FragmentReassembler())
+                        .add((MessageFragment) m);
+                if (m == null) {
+                    return;
+                }
+                m.setReliable(reliable);
+            }
             messageDispatcher.messageReceived(source, m);
         } catch (Exception e) {
             reportError(p, m, e);
@@ -196,6 +270,7 @@ public class MyKernelAdapter extends Thread {
             return new MessageProtocol();
         } else {
             // See if we already have one
+            Map<Endpoint, MessageProtocol> messageBuffers = shardOf(p).messageBuffers;
             MessageProtocol result = messageBuffers.get(p);
             if (result == null) {
                 result = new MessageProtocol();
@@ -206,33 +281,78 @@ public class MyKernelAdapter extends Thread {
     }
 
     protected void createAndDispatch(Envelope env) {
-        MessageProtocol protocol = getMessageBuffer(env.getSource());
-
-        byte[] data = env.getData();
-        ByteBuffer buffer = ByteBuffer.wrap(data);
-
-        int count = protocol.addBuffer(buffer);
-        if (count == 0) {
-            // This can happen if there was only a partial message
-            // received.  However, this should never happen for unreliable
-            // connections.
-            if (!reliable) {
-                // Log some additional information about the packet.
-                int len = Math.min(10, data.length);
-                StringBuilder sb = new StringBuilder();
-                for (int i = 0; i < len; i++) {
-                    sb.append("[").append(Integer.toHexString(data[i])).append("]");
-                }
-                log.log(Level.FINE, "First 10 bytes of incomplete nessage:{0}", sb);
-                throw new RuntimeException("Envelope contained incomplete data:" + env);
-            }
+        if (shards.length > 1) {
+            shardOf(env.getSource()).enqueue(env.getSource(),
+                    ByteBuffer.wrap(env.getData()), false);
+            return;
+        }
+        createAndDispatch(env.getSource(), ByteBuffer.wrap(env.getData()));
+    }
+
+    /**
+     * Receives datagrams of NioUdpKernel. With several workers the buffer
+     * is queued and returned to kernel's BufferPool after it is handled.
+     */
+    @Override
+    public boolean datagramReceived(Endpoint source, ByteBuffer data) {
+        if (shards.length > 1) {
+            return shardOf(source).enqueue(source, data, false);
+        }
+
+        try {
+            createAndDispatch(source, data);
+        } catch (Exception ex) {
+            reportError(source, data, ex);
+        }
+        return false;
+    }
+
+    protected void createAndDispatch(Endpoint source, ByteBuffer buffer) {
+        if (!reliable) {
+            decodeAndDispatch(source, buffer);
+            return;
         }
 
+        // Partial messages stay buffered until the rest arrives
+        MessageProtocol protocol = getMessageBuffer(source);
+        protocol.addBuffer(buffer);
+
         // Should be complete... and maybe we should check but we don't
         Message m = null;
         while ((m = protocol.getMessage()) != null) {
             m.setReliable(reliable);
-            dispatch(env.getSource(), m);
+            dispatch(source, m);
+        }
+    }
+
+    /**
+     * Dispatches messages of an unreliable datagram without copying it.
+     * Decoder belongs to the shard of source, which is only used by one
+     * thread.
+     */
+    private void decodeAndDispatch(Endpoint source, ByteBuffer buffer) {
+        MessageDecoder decoder = shardOf(source).decoder;
+        int start = buffer.position();
+        decoder.reset(buffer);
+        try {
+            Message m;
+            while ((m = decoder.next()) != null) {
+                m.setReliable(reliable);
+                dispatch(source, m);
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException("Error deserializing datagram from " + source, ex);
+        }
+
+        if (decoder.getCount() == 0 && decoder.hasIncomplete()) {
+            // Log some additional information about the packet.
+            int len = Math.min(10, buffer.limit() - start);
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < len; i++) {
+                sb.append("[").append(Integer.toHexString(buffer.get(start + i))).append("]");
+            }
+            log.log(Level.FINE, "First 10 bytes of incomplete nessage:{0}", sb);
+            throw new RuntimeException("Datagram from " + source + " contained incomplete data");
         }
     }
 
@@ -256,6 +376,11 @@ public class MyKernelAdapter extends Thread {
 
     @Override
     public void run() {
+        if (kernel instanceof NioUdpKernel) {
+            runNio((NioUdpKernel) kernel);
+            return;
+        }
+
         while (go.get()) {
 
             try {
@@ -286,4 +411,131 @@ public class MyKernelAdapter extends Thread {
             }
         }
     }
+
+    private void runNio(NioUdpKernel nioKernel) {
+        while (go.get()) {
+            flushEvents();
+            try {
+                // Timeout lets closed endpoints be noticed without traffic
+                nioKernel.receive(this, 100);
+            } catch (IOException ex) {
+                if (!go.get()) {
+                    return;
+                }
+                log.log(Level.SEVERE, "Error receiving datagrams", ex);
+            }
+        }
+    }
+
+    /**
+     * Decodes and dispatches datagrams of the endpoints that hash to it.
+     * Per endpoint buffers are kept here so that workers do not share
+     * decoding state. Dispatch itself still goes to the shared message
+     * dispatcher from every worker.
+     */
+    private class Shard extends Thread {
+
+        // Keeps track of the in-progress messages that are received
+        // on reliable connections
+        final Map<Endpoint, MessageProtocol> messageBuffers = new HashMap<>();
+
+        // Fragments of messages that were too large for one datagram
+        final Map<Endpoint, FragmentReassembler> reassemblers = new HashMap<>();
+
+        final MessageDecoder decoder = new MessageDecoder();
+
+        private final BlockingQueue<Received> queue;
+
+        /**
+         * @param queueCapacity 0 if datagrams are handled by the adapter
+         * thread itself
+         */
+        Shard(int index, int queueCapacity) {
+            super(MyKernelAdapter.this.getName() + "-worker-" + index);
+            setDaemon(true);
+            queue = queueCapacity > 0
+                    ? new ArrayBlockingQueue<>(queueCapacity) : null;
+        }
+
+        /**
+         * @param force wait for room instead of dropping data
+         * @return false if data was dropped. Caller still owns data then.
+         */
+        boolean enqueue(Endpoint p, ByteBuffer data, boolean force) {
+            Received received = new Received(p, data);
+            if (!force) {
+                if (!queue.offer(received)) {
+                    log.log(Level.FINE, "Worker {0} is full, dropped datagram from {1}",
+                            new Object[]{getName(), p});
+                    return false;
+                }
+                return true;
+            }
+
+            try {
+                queue.put(received);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            return true;
+        }
+
+        void connectionClosed(Endpoint p) {
+            // Remove any message buffer we've been accumulating
+            // on behalf of this endpoing
+            messageBuffers.remove(p);
+            reassemblers.remove(p);
+
+            log.log(Level.FINE, "Buffers size:{0}", messageBuffers.size());
+
+            server.connectionClosed(p);
+        }
+
+        @Override
+        public void run() {
+            BufferPool pool = kernel instanceof NioUdpKernel
+                    ? ((NioUdpKernel) kernel).getBufferPool() : null;
+            while (true) {
+                Received received;
+                try {
+                    received = queue.take();
+                } catch (InterruptedException ex) {
+                    return;
+                }
+
+                Endpoint p = received.endpoint;
+                ByteBuffer data = received.data;
+
+                try {
+                    if (data == CLOSED) {
+                        connectionClosed(p);
+                    } else {
+                        createAndDispatch(p, data);
+                    }
+                } catch (Exception ex) {
+                    reportError(p, data, ex);
+                } finally {
+                    if (pool != null) {
+                        pool.release(data);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * One datagram waiting for its worker. Endpoint and data are queued
+     * together so that they cannot be separated.
+     */
+    private static final class Received {
+
+        final Endpoint endpoint;
+        final ByteBuffer data;
+
+        Received(Endpoint endpoint, ByteBuffer data) {
+            this.endpoint = endpoint;
+            this.data = data;
+        }
+    }
 }
@@ -0,0 +1,81 @@
+package arkhados.net.connection;
+
+import com.jme3.network.kernel.Endpoint;
+import com.jme3.network.kernel.Kernel;
+import com.jme3.network.kernel.KernelException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Remote address that has sent datagrams to NioUdpKernel.
+ */
+public class NioEndpoint implements Endpoint {
+
+    private final NioUdpKernel kernel;
+    private final long id;
+    private final SocketAddress address;
+    private volatile boolean connected = true;
+
+    public NioEndpoint(NioUdpKernel kernel, long id, SocketAddress address) {
+        this.kernel = kernel;
+        this.id = id;
+        this.address = address;
+    }
+
+    @Override
+    public long getId() {
+        return id;
+    }
+
+    @Override
+    public String getAddress() {
+        return String.valueOf(address);
+    }
+
+    public SocketAddress getRemoteAddress() {
+        return address;
+    }
+
+    @Override
+    public Kernel getKernel() {
+        return kernel;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * Sends data immediately from the calling thread. Datagram is dropped if
+     * socket's send buffer is full.
+     */
+    @Override
+    public void send(ByteBuffer data) {
+        if (!connected) {
+            throw new KernelException("Endpoint is not connected:" + this);
+        }
+
+        kernel.send(address, data);
+    }
+
+    @Override
+    public void close() {
+        close(false);
+    }
+
+    @Override
+    public void close(boolean flush) {
+        // Datagrams are sent immediately so there is nothing to flush
+        if (!connected) {
+            return;
+        }
+        connected = false;
+        kernel.closeEndpoint(this);
+    }
+
+    @Override
+    public String toString() {
+        return "NioEndpoint[" + id + ", " + address + "]";
+    }
+}
@@ -0,0 +1,229 @@
+package arkhados.net.connection;
+
+import com.jme3.network.Filter;
+import com.jme3.network.kernel.AbstractKernel;
+import com.jme3.network.kernel.Endpoint;
+import com.jme3.network.kernel.EndpointEvent;
+import com.jme3.network.kernel.KernelException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Server kernel that uses non-blocking DatagramChannel instead of
+ * DatagramSocket. Unlike UdpKernel it does not wrap datagrams into
+ * Envelopes. MyKernelAdapter calls receive(), which drains every waiting
+ * datagram into pooled direct buffers and hands them to the adapter on the
+ * adapter's own thread. Sends are written to the channel directly by the
+ * calling thread, so there is no writer thread either.
+ * <p>
+ * Only MyKernelAdapter can read from this kernel; read() never returns
+ * datagrams.
+ */
+public class NioUdpKernel extends AbstractKernel {
+
+    static final Logger log = Logger.getLogger(NioUdpKernel.class.getName());
+
+    /**
+     * Largest message that MessageProtocol can frame, including length
+     */
+    public static final int MAX_DATAGRAM_SIZE = 32769;
+
+    public interface DatagramListener {
+
+        /**
+         * @param data datagram in buffer leased from getBufferPool()
+         * @return true if listener keeps data and releases it to the pool
+         * itself. Otherwise data is reused once this returns.
+         */
+        public boolean datagramReceived(Endpoint source, ByteBuffer data);
+    }
+
+    private final SocketAddress address;
+    private final Map<SocketAddress, NioEndpoint> endpoints =
+            new ConcurrentHashMap<>();
+    private final BufferPool buffers;
+    private final ByteBuffer[] batch;
+    private final NioEndpoint[] batchSources;
+    private DatagramChannel channel;
+    private Selector selector;
+    private volatile boolean go = true;
+
+    public NioUdpKernel(int port) {
+        this(new InetSocketAddress(port));
+    }
+
+    public NioUdpKernel(SocketAddress address) {
+        this(address, 64);
+    }
+
+    /**
+     * @param maxBatch most datagrams received on one call to receive()
+     */
+    public NioUdpKernel(SocketAddress address, int maxBatch) {
+        this.address = address;
+        // Room for datagrams that listener keeps queued
+        buffers = new BufferPool(MAX_DATAGRAM_SIZE, maxBatch * 4, true);
+        batch = new ByteBuffer[maxBatch];
+        batchSources = new NioEndpoint[maxBatch];
+    }
+
+    @Override
+    public void initialize() {
+        if (channel != null) {
+            throw new IllegalStateException("Kernel already initialized.");
+        }
+
+        try {
+            channel = DatagramChannel.open();
+            channel.configureBlocking(false);
+            channel.bind(address);
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
+        } catch (IOException ex) {
+            throw new KernelException("Error hosting:" + address, ex);
+        }
+    }
+
+    @Override
+    public void terminate() throws InterruptedException {
+        if (channel == null) {
+            throw new IllegalStateException("Kernel not initialized.");
+        }
+
+        go = false;
+        selector.wakeup();
+        try {
+            selector.close();
+            channel.close();
+        } catch (IOException ex) {
+            throw new KernelException("Error closing kernel", ex);
+        }
+
+        // Wake up MyKernelAdapter if it is reading through Kernel interface
+        addEnvelope(EVENTS_PENDING);
+    }
+
+    /**
+     * Waits up to timeout milliseconds for datagrams and passes every
+     * datagram that has arrived to listener. Must be called from one thread
+     * only.
+     *
+     * @return number of datagrams received
+     */
+    public int receive(DatagramListener listener, long timeout)
+            throws IOException {
+        if (!go) {
+            return 0;
+        }
+
+        try {
+            selector.select(timeout);
+            selector.selectedKeys().clear();
+        } catch (ClosedSelectorException ex) {
+            // Terminated while waiting
+            return 0;
+        }
+
+        int count = 0;
+        while (count < batch.length) {
+            ByteBuffer buffer = buffers.lease();
+            SocketAddress source = channel.receive(buffer);
+            if (source == null) {
+                buffers.release(buffer);
+                break;
+            }
+
+            buffer.flip();
+            batch[count] = buffer;
+            batchSources[count] = getEndpoint(source);
+            ++count;
+        }
+
+        for (int i = 0; i < count; i++) {
+            boolean kept = false;
+            try {
+                kept = listener.datagramReceived(batchSources[i], batch[i]);
+            } finally {
+                if (!kept) {
+                    buffers.release(batch[i]);
+                }
+                batch[i] = null;
+                batchSources[i] = null;
+            }
+        }
+
+        return count;
+    }
+
+    private NioEndpoint getEndpoint(SocketAddress source) {
+        NioEndpoint endpoint = endpoints.get(source);
+        if (endpoint == null) {
+            endpoint = new NioEndpoint(this, nextEndpointId(), source);
+            endpoints.put(source, endpoint);
+            addEvent(EndpointEvent.createAdd(this, endpoint));
+        }
+        return endpoint;
+    }
+
+    void send(SocketAddress target, ByteBuffer data) {
+        try {
+            if (channel.send(data, target) == 0) {
+                log.log(Level.FINE, "Send buffer full, dropped datagram to"
+                        + " {0}", target);
+            }
+        } catch (IOException ex) {
+            throw new KernelException("Error sending datagram to:" + target,
+                    ex);
+        }
+    }
+
+    void closeEndpoint(NioEndpoint endpoint) {
+        if (endpoints.remove(endpoint.getRemoteAddress()) == null) {
+            return;
+        }
+        addEvent(EndpointEvent.createRemove(this, endpoint));
+        selector.wakeup();
+    }
+
+    @Override
+    public void broadcast(Filter<? super Endpoint> filter, ByteBuffer data,
+            boolean reliable, boolean copy) {
+        if (reliable) {
+            throw new UnsupportedOperationException(
+                    "Reliable send not supported by this kernel.");
+        }
+
+        // Channel consumes the buffer, so rewind it for every endpoint
+        // instead of duplicating it
+        int position = data.position();
+        for (NioEndpoint endpoint : endpoints.values()) {
+            if (filter != null && !filter.apply(endpoint)) {
+                continue;
+            }
+            try {
+                endpoint.send(data);
+            } finally {
+                data.position(position);
+            }
+        }
+    }
+
+    public BufferPool getBufferPool() {
+        return buffers;
+    }
+
+    @Override
+    public String toString() {
+        return "NioUdpKernel[" + address + "]";
+    }
+}
@@ -0,0 +1,173 @@
+package arkhados.net.connection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hashed timing wheel. Timeouts are kept in doubly linked lists, one for
+ * each slot of the wheel, so scheduling and cancelling are O(1) and do not
+ * allocate. advance() visits only the slots whose ticks have passed, so its
+ * cost depends on the number of expiring timeouts rather than the number
+ * of scheduled ones.
+ * <p>
+ * schedule and cancel may be called from any thread. advance must be called
+ * from one thread only and expired() is called on that thread.
+ */
+public class TimingWheel {
+
+    static final Logger log = Logger.getLogger(TimingWheel.class.getName());
+
+    public abstract static class Timeout {
+
+        private volatile TimingWheel wheel;
+        private long deadline;
+        private Timeout prev;
+        private Timeout next;
+
+        /**
+         * Called when timeout expires. Timeout is not scheduled anymore so
+         * it can schedule itself again.
+         */
+        protected abstract void expired(TimingWheel wheel);
+
+        public boolean isScheduled() {
+            return wheel != null;
+        }
+    }
+
+    private final long tickMillis;
+    private final long start;
+    private final Timeout[] slots;
+    private final int mask;
+    private final List<Timeout> expired = new ArrayList<>();
+    private long tick = 0;
+    private volatile long time;
+
+    /**
+     * @param tickMillis resolution of the wheel
+     * @param slotCount number of slots, rounded up to power of two. Timeouts
+     * longer than slotCount ticks wait for several rounds.
+     */
+    public TimingWheel(long tickMillis, int slotCount) {
+        if (tickMillis <= 0 || slotCount <= 0 || slotCount > 1 << 30) {
+            throw new IllegalArgumentException("Invalid tickMillis or"
+                    + " slotCount");
+        }
+        this.tickMillis = tickMillis;
+        int size = Integer.highestOneBit(slotCount);
+        if (size < slotCount) {
+            size <<= 1;
+        }
+        slots = new Timeout[size];
+        mask = size - 1;
+        start = System.currentTimeMillis();
+        time = start;
+    }
+
+    /**
+     * @return time given to the latest call to advance. Cheaper than
+     * System.currentTimeMillis and accurate to one tick.
+     */
+    public long getTime() {
+        return time;
+    }
+
+    public long getTickMillis() {
+        return tickMillis;
+    }
+
+    /**
+     * Schedules timeout to expire after delay milliseconds, rounded up to
+     * the next tick. Timeout that is already scheduled is moved.
+     */
+    public synchronized void schedule(Timeout timeout, long delay) {
+        long ticks = Math.max(1, (delay + tickMillis - 1) / tickMillis);
+        if (timeout.wheel == this) {
+            unlink(timeout);
+        } else if (timeout.wheel != null) {
+            throw new IllegalStateException("Timeout is scheduled on"
+                    + " another wheel");
+        }
+        timeout.wheel = this;
+        timeout.deadline = tick + ticks;
+
+        int slot = (int) (timeout.deadline & mask);
+        timeout.prev = null;
+        timeout.next = slots[slot];
+        if (timeout.next != null) {
+            timeout.next.prev = timeout;
+        }
+        slots[slot] = timeout;
+    }
+
+    /**
+     * @return true if timeout was scheduled
+     */
+    public synchronized boolean cancel(Timeout timeout) {
+        if (timeout.wheel != this) {
+            return false;
+        }
+        unlink(timeout);
+        return true;
+    }
+
+    private void unlink(Timeout timeout) {
+        int slot = (int) (timeout.deadline & mask);
+        if (timeout.prev == null) {
+            slots[slot] = timeout.next;
+        } else {
+            timeout.prev.next = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.wheel = null;
+    }
+
+    /**
+     * Moves wheel to given time and calls expired() of every timeout whose
+     * deadline has passed.
+     *
+     * @param now current time in milliseconds
+     */
+    public void advance(long now) {
+        synchronized (this) {
+            time = now;
+            long target = (now - start) / tickMillis;
+            // After long pause every slot is visited once
+            long first = Math.max(tick + 1, target - mask);
+            for (long t = first; t <= target; t++) {
+                collect((int) (t & mask), target);
+            }
+            tick = Math.max(tick, target);
+        }
+
+        // Called outside of lock so that timeouts can reschedule themselves
+        // and take other locks
+        for (int i = 0; i < expired.size(); i++) {
+            Timeout timeout = expired.get(i);
+            try {
+                timeout.expired(this);
+            } catch (RuntimeException ex) {
+                log.log(Level.SEVERE, "Error in expired timeout", ex);
+            }
+        }
+        expired.clear();
+    }
+
+    private void collect(int slot, long target) {
+        Timeout timeout = slots[slot];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.deadline <= target) {
+                unlink(timeout);
+                expired.add(timeout);
+            }
+            timeout = next;
+        }
+    }
+}
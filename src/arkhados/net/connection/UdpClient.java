@@ -35,19 +35,20 @@ import com.jme3.network.*;
 import com.jme3.network.ClientStateListener.DisconnectInfo;
 import com.jme3.network.base.ConnectorAdapter;
 import com.jme3.network.base.MessageListenerRegistry;
-import com.jme3.network.base.MessageProtocol;
 import com.jme3.network.kernel.Connector;
 import com.jme3.network.message.ChannelInfoMessage;
 import com.jme3.network.message.ClientRegistrationMessage;
 import com.jme3.network.message.DisconnectMessage;
 import com.jme3.network.service.ClientServiceManager;
 import com.jme3.network.service.serializer.ClientSerializerRegistrationsService;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -64,7 +65,8 @@ public class UdpClient implements Client {
 
     private static final int CH_UNRELIABLE = 0;
 
-    private final ThreadLocal<ByteBuffer> dataBuffer = new ThreadLocal<>();
+    private final MessageFragmenter fragmenter = new MessageFragmenter();
+    private final FragmentReassembler reassembler = new FragmentReassembler();
 
     private int id = -1;
     private boolean isRunning = false;
@@ -76,6 +78,7 @@ public class UdpClient implements Client {
     private final List<ErrorListener<? super Client>> errorListeners = new CopyOnWriteArrayList<>();
     private final Redispatch dispatcher = new Redispatch();
     private final List<ConnectorAdapter> channels = new ArrayList<>();
+    private final List<Consumer<ByteBuffer>> writers = new ArrayList<>();
     private final Queue<Message> forcedMessages = new ArrayDeque<>();
 
     private int lastOrderNum = -1;
@@ -113,7 +116,10 @@ public class UdpClient implements Client {
             throw new IllegalStateException("Channels already exist.");
         }
 
-        channels.add(new ConnectorAdapter(fast, dispatcher, dispatcher, false));
+        ConnectorAdapter adapter = new ConnectorAdapter(
+                new ReleasingConnector(fast), dispatcher, dispatcher, false);
+        channels.add(adapter);
+        writers.add(adapter::write);
     }
 
     protected void checkRunning() {
@@ -270,24 +276,17 @@ public class UdpClient implements Client {
             waitForConnected();
         }
 
-        ByteBuffer buffer = dataBuffer.get();
-        if (buffer == null) {
-            buffer = ByteBuffer.allocate(65536 + 2);
-            dataBuffer.set(buffer);
+        // We actually do the send on a background thread, so datagrams are
+        // leased and ReleasingConnector returns them once they are written.
+        try {
+            fragmenter.writeLeased(message, writers.get(channel));
+        } catch (IOException ex) {
+            throw new RuntimeException("Error serializing message", ex);
         }
-        buffer.clear();
-
-        // Convert the message to bytes
-        buffer = MessageProtocol.messageToBuffer(message, buffer);
-
-        // Since we share the buffer between invocations, we will need to 
-        // copy this message's part out of it.  This is because we actually
-        // do the send on a background thread.       
-        byte[] temp = new byte[buffer.remaining()];
-        System.arraycopy(buffer.array(), buffer.position(), temp, 0, buffer.remaining());
-        buffer = ByteBuffer.wrap(temp);
+    }
 
-        channels.get(channel).write(buffer);
+    public MessageFragmenter getFragmenter() {
+        return fragmenter;
     }
 
     @Override
@@ -492,10 +491,64 @@ public class UdpClient implements Client {
         }
     }
 
+    /**
+     * Returns datagrams to fragmenter's pool after ConnectorAdapter's writer
+     * thread has written them.
+     */
+    protected class ReleasingConnector implements Connector {
+
+        private final Connector delegate;
+
+        public ReleasingConnector(Connector delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public boolean isConnected() {
+            return delegate.isConnected();
+        }
+
+        @Override
+        public void close() {
+            delegate.close();
+        }
+
+        @Override
+        public boolean available() {
+            return delegate.available();
+        }
+
+        @Override
+        public ByteBuffer read() {
+            return delegate.read();
+        }
+
+        @Override
+        public void write(ByteBuffer data) {
+            try {
+                delegate.write(data);
+            } finally {
+                fragmenter.release(data);
+            }
+        }
+    }
+
     protected class Redispatch implements MessageListener<Object>, ErrorListener<Object> {
 
         @Override
         public void messageReceived(Object source, Message m) {
+            if (m instanceof MessageFragment) {
+                try {
+                    m = reassembler.add((MessageFragment) m);
+                } catch (IOException ex) {
+                    log.log(Level.WARNING, "Cannot reassemble message", ex);
+                    return;
+                }
+                if (m == null) {
+                    return;
+                }
+            }
+
             if (m instanceof ConnectionMessageContainer) {
                 ConnectionMessageContainer c = (ConnectionMessageContainer) m;
                 if (c.getOrderNum() <= lastOrderNum) {
@@ -31,23 +31,25 @@
  */
 package arkhados.net.connection;
 
+import arkhados.net.ConnectionState;
+import arkhados.net.ConnectionStates;
 import com.jme3.network.*;
 import com.jme3.network.base.KernelFactory;
 import com.jme3.network.base.MessageListenerRegistry;
-import com.jme3.network.base.MessageProtocol;
 import com.jme3.network.kernel.Endpoint;
 import com.jme3.network.kernel.Kernel;
 import com.jme3.network.message.ChannelInfoMessage;
 import com.jme3.network.message.ClientRegistrationMessage;
 import com.jme3.network.message.DisconnectMessage;
 import com.jme3.network.service.HostedServiceManager;
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -62,12 +64,19 @@ public class UdpServer implements Server {
 
     static final Logger log = Logger.getLogger(UdpServer.class.getName());
     private static final long MAX_DELTA_TIME = 2000;
+    private static final long RESEND_INTERVAL = 200;
+    private static final long TICK_MILLIS = 50;
 
     // The first channel is reserved for unreliable
     private static final int CH_UNRELIABLE = 0;
 
     private boolean isRunning = false;
-    private final AtomicInteger nextId = new AtomicInteger(0);
+    /**
+     * Ids of closed connections. Lowest is reused first so that ids, and
+     * so ConnectionStates, stay as dense as the number of live connections.
+     */
+    private final BitSet freeIds = new BitSet();
+    private int nextId = 0;
     private String gameName;
     private int version;
     private final KernelFactory kernelFactory = KernelFactory.DEFAULT;
@@ -89,18 +98,18 @@ public class UdpServer implements Server {
             = new MessageListenerRegistry<>();
     private final List<ConnectionListener> connectionListeners = new CopyOnWriteArrayList<>();
 
-    private final Map<HostedConnection, Integer> orderNums
-            = new ConcurrentHashMap<>();
-    private final Map<HostedConnection, Integer> orderNumCounters
-            = new ConcurrentHashMap<>();
-    private final Map<HostedConnection, Queue<Message>> forceQueues
-            = new ConcurrentHashMap<>();
-    private final Map<HostedConnection, Long> lastReceivals
-            = new ConcurrentHashMap<>();
+    private final ConnectionStates connectionStates = new ConnectionStates();
+    private final MessageFragmenter fragmenter = new MessageFragmenter();
+    /**
+     * Whether kernel is done with sent datagram when send returns, so that
+     * datagrams can be serialized into pooled buffers
+     */
+    private final boolean synchronousSends;
 
     private HostedServiceManager services;
 
     final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+    private final TimingWheel timers = new TimingWheel(TICK_MILLIS, 64);
 
     public UdpServer(String gameName, int version, Kernel fast) {
         this.connections = new ConcurrentHashMap<>();
@@ -116,6 +125,7 @@ public class UdpServer implements Server {
 
         fastAdapter = new MyKernelAdapter(this, fast, dispatcher);
         channels.add(fastAdapter);
+        synchronousSends = fast instanceof NioUdpKernel;
 
     }
 
@@ -199,35 +209,15 @@ public class UdpServer implements Server {
         // Start the services
         services.start();
 
+        // Idle timeouts and control message resends are timeouts of each
+        // connection, so ticking costs nothing for connections that have
+        // nothing expiring
         executor.scheduleAtFixedRate(new Runnable() {
             @Override
             public void run() {
-                for (Map.Entry<HostedConnection, Queue<Message>> entry
-                        : forceQueues.entrySet()) {
-                    Message m = entry.getValue().peek();
-                    if (m == null) {
-                        continue;
-                    }
-
-                    Integer orderNum = orderNumCounters.get(entry.getKey());
-
-                    ConnectionMessageContainer container
-                            = new ConnectionMessageContainer(orderNum, m, true);
-
-                    entry.getKey().send(container);
-                }
-
-                for (Iterator<Map.Entry<HostedConnection, Long>> it 
-                        = lastReceivals.entrySet().iterator(); it.hasNext();) {
-                    Map.Entry<HostedConnection, Long> entry = it.next();
-                    long delta = System.currentTimeMillis() - entry.getValue();
-                    if (delta > MAX_DELTA_TIME) {
-                        ((Connection) entry.getKey()).closeConnection();
-                        it.remove();
-                    }
-                }
+                timers.advance(System.currentTimeMillis());
             }
-        }, 0, 200, TimeUnit.MILLISECONDS);
+        }, 0, TICK_MILLIS, TimeUnit.MILLISECONDS);
     }
 
     @Override
@@ -276,11 +266,12 @@ public class UdpServer implements Server {
             return;
         }
 
-        ByteBuffer buffer = MessageProtocol.messageToBuffer(message, null);
-
         FilterAdapter adapter = filter == null ? null : new FilterAdapter(filter);
 
-        fastAdapter.broadcast(adapter, buffer, false);
+        // Datagrams are not modified after this so all endpoints can share
+        // them
+        write(message, buffer -> fastAdapter.broadcast(adapter, buffer,
+                false));
     }
 
     @Override
@@ -451,9 +442,9 @@ public class UdpServer implements Server {
                     }
 
                     addedConnection = c;
-                    forceQueues.put(addedConnection, new ArrayDeque<Message>());
-                    orderNums.put(addedConnection, -1);
-                    orderNumCounters.put(addedConnection, 0);
+                    connectionStates.create(addedConnection)
+                            .setLastReceival(timers.getTime());
+                    timers.schedule(c.idleTimeout, MAX_DELTA_TIME);
                 }
             } else {
                 // Need to keep getting channels so we'll keep it in
@@ -473,7 +464,9 @@ public class UdpServer implements Server {
             m.setId(addedConnection.getId());
             m.setReliable(false);
 
-            forceQueues.get(addedConnection).add(m);
+            Queue<Message> forceQueue = connectionStates.get(addedConnection)
+                    .getForceQueue();
+            forceQueue.add(m);
             // Now we can notify the listeners about the
             // new connection.
             fireConnectionAdded(addedConnection);
@@ -483,7 +476,25 @@ public class UdpServer implements Server {
             m = new ClientRegistrationMessage();
             m.setId(-1);
             m.setReliable(false);
-            forceQueues.get(addedConnection).add(m);
+            forceQueue.add(m);
+            addedConnection.resendForced();
+        }
+    }
+
+    private int allocateId() {
+        synchronized (freeIds) {
+            int id = freeIds.nextSetBit(0);
+            if (id == -1) {
+                return nextId++;
+            }
+            freeIds.clear(id);
+            return id;
+        }
+    }
+
+    private void releaseId(int id) {
+        synchronized (freeIds) {
+            freeIds.set(id);
         }
     }
 
@@ -491,6 +502,14 @@ public class UdpServer implements Server {
         return endpointConnections.get(endpoint);
     }
 
+    /**
+     * @return per connection states that are shared with ServerSender and
+     * DefaultReceiver
+     */
+    public ConnectionStates getConnectionStates() {
+        return connectionStates;
+    }
+
     protected void removeConnecting(Endpoint p) {
         // No easy lookup for connecting Connections
         // from endpoint.
@@ -522,7 +541,8 @@ public class UdpServer implements Server {
             // And the regular management
             removed = (Connection) endpointConnections.remove(p);
             if (removed != null) {
-                connections.remove(removed.getId());
+                // Id may already belong to a newer connection
+                connections.remove(removed.getId(), removed);
             }
 
             log.log(Level.FINE, "Connections size:{0}", connections.size());
@@ -549,9 +569,13 @@ public class UdpServer implements Server {
         private int setChannelCount = 0;
 
         private final Map<String, Object> sessionData = new ConcurrentHashMap<>();
+        private final Consumer<ByteBuffer> sender =
+                data -> channels[CH_UNRELIABLE].send(data);
+        private final TimingWheel.Timeout idleTimeout = new IdleTimeout();
+        private final TimingWheel.Timeout resendTimeout = new ResendTimeout();
 
         public Connection(int channelCount) {
-            id = nextId.getAndIncrement();
+            id = allocateId();
             channels = new Endpoint[channelCount];
         }
 
@@ -600,8 +624,7 @@ public class UdpServer implements Server {
                 log.log(Level.FINER, "send({0})", message);
             }
 
-            ByteBuffer buffer = MessageProtocol.messageToBuffer(message, null);
-            channels[CH_UNRELIABLE].send(buffer);
+            write(message, sender);
         }
 
         @Override
@@ -616,10 +639,12 @@ public class UdpServer implements Server {
         }
 
         protected void closeConnection() {
-            if (closed) {
-                return;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
             }
-            closed = true;
 
             // Make sure all endpoints are closed. 
             for (Endpoint p : channels) {
@@ -629,7 +654,26 @@ public class UdpServer implements Server {
                 p.close();
             }
 
+            timers.cancel(idleTimeout);
+            timers.cancel(resendTimeout);
+            connectionStates.remove(this);
+
             fireConnectionRemoved(this);
+
+            // Listeners are done with the id, so it can be given to next
+            // connection once this one is not found with it
+            connections.remove(id, this);
+            releaseId(id);
+        }
+
+        /**
+         * Sends head of force queue on the next tick and then every
+         * RESEND_INTERVAL until the queue is empty
+         */
+        protected void resendForced() {
+            if (!closed) {
+                timers.schedule(resendTimeout, 0);
+            }
         }
 
         @Override
@@ -640,8 +684,12 @@ public class UdpServer implements Server {
             m.setReason(reason);
             m.setReliable(true);
 
-            forceQueues.get(this).clear(); // TODO: Not sure if this is good
-            forceQueues.get(this).add(m);
+            ConnectionState state = connectionStates.get(this);
+            if (state != null) {
+                state.getForceQueue().clear(); // TODO: Not sure if this is good
+                state.getForceQueue().add(m);
+                resendForced();
+            }
 
             // fast will be cleaned up as a side-effect
             // when closeConnection() is called by the
@@ -672,33 +720,77 @@ public class UdpServer implements Server {
             return "Connection[ id=" + id
                     + ", fast=" + channels[CH_UNRELIABLE] + " ]";
         }
+
+        /**
+         * Receiving only stores time of receival, so this checks it when
+         * the connection could have been idle for MAX_DELTA_TIME and
+         * reschedules itself if it has not.
+         */
+        private class IdleTimeout extends TimingWheel.Timeout {
+
+            @Override
+            protected void expired(TimingWheel wheel) {
+                ConnectionState state = connectionStates.get(Connection.this);
+                if (state == null || closed) {
+                    return;
+                }
+
+                long idle = wheel.getTime() - state.getLastReceival();
+                if (idle > MAX_DELTA_TIME) {
+                    closeConnection();
+                } else {
+                    wheel.schedule(this, MAX_DELTA_TIME - idle + 1);
+                }
+            }
+        }
+
+        private class ResendTimeout extends TimingWheel.Timeout {
+
+            @Override
+            protected void expired(TimingWheel wheel) {
+                ConnectionState state = connectionStates.get(Connection.this);
+                if (state == null || closed) {
+                    return;
+                }
+
+                Message m = state.getForceQueue().peek();
+                if (m == null) {
+                    return;
+                }
+
+                send(new ConnectionMessageContainer(
+                        state.getOrderNumCounter(), m, true));
+                wheel.schedule(this, RESEND_INTERVAL);
+            }
+        }
     }
 
     protected class Redispatch implements MessageListener<HostedConnection> {
 
         @Override
         public void messageReceived(HostedConnection source, Message m) {
-            lastReceivals.put(source, System.currentTimeMillis());
+            ConnectionState state = connectionStates.get(source);
+            if (state != null) {
+                state.setLastReceival(timers.getTime());
+            }
 
             if (m instanceof ConnectionMessageContainer) {
                 ConnectionMessageContainer c = (ConnectionMessageContainer) m;
-                Integer orderNumber = orderNums.get(source);
 
-                if (orderNumber == null) {
+                if (state == null) {
                     // TODO: Throw error or handle null
                     return;
                 }
-                if (c.getOrderNum() <= orderNumber) {
+                if (c.getOrderNum() <= state.getOrderNum()) {
                     return;
                 }
 
                 if (c.confirms()) {
-                    forceQueues.get(source).remove();
-                    int orderNumCounter = orderNumCounters.get(source);
-                    orderNumCounters.put(source, orderNumCounter + 1);
+                    state.getForceQueue().poll();
+                    state.incrementOrderNumCounter();
                 }
 
-                orderNums.put(source, c.getOrderNum());
+                state.setOrderNum(c.getOrderNum());
 
                 dispatch(source, c.getMessage());
             } else {
@@ -707,6 +799,40 @@ public class UdpServer implements Server {
         }
     }
 
+    /**
+     * Writes message as one datagram or, if it is too large, as several
+     * MessageFragments. Datagrams are pooled if kernel sends synchronously.
+     * UdpKernel sends on its writer thread and tells nothing when it is
+     * done, so each datagram must get its own array.
+     */
+    protected void write(Message message, Consumer<ByteBuffer> out) {
+        try {
+            if (synchronousSends) {
+                fragmenter.writePooled(message, out);
+            } else {
+                fragmenter.write(message, out);
+            }
+        } catch (IOException ex) {
+            throw new RuntimeException("Error serializing message", ex);
+        }
+    }
+
+    /**
+     * Sets number of threads that decode and dispatch received messages.
+     * Must be called before start(). With more than one worker, message
+     * listeners and CommandHandlers are called concurrently for different
+     * connections.
+     *
+     * @see MyKernelAdapter#setWorkerCount(int, int)
+     */
+    public void setReceiveWorkers(int count, int queueCapacity) {
+        fastAdapter.setWorkerCount(count, queueCapacity);
+    }
+
+    public MessageFragmenter getFragmenter() {
+        return fragmenter;
+    }
+
     protected class FilterAdapter implements Filter<Endpoint> {
 
         private final Filter<? super HostedConnection> delegate;
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2009-2011 William Linna
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Arkhados' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package arkhados.net;
+
+import com.jme3.network.serializing.Serializable;
+import com.jme3.network.serializing.Serializer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checks that a guaranteed batch larger than mtuBudget on one stream is
+ * still sent while another stream has a new batch due every tick.
+ * <p>
+ * Stream 0 gets one small batch per tick that is confirmed right after it
+ * is sent. Stream 1 holds one batch that is twice mtuBudget and is never
+ * confirmed, so it must be sent on the first tick and then once per
+ * retransmission timeout.
+ * <p>
+ * Run with src and jME networking on classpath:
+ * java arkhados.net.RetransmissionSchedulerCheck
+ */
+public class RetransmissionSchedulerCheck {
+
+    private static final int TICKS = 200;
+    private static final long TICK_MILLIS = 16;
+    private static final long TIMEOUT = 200;
+
+    @Serializable
+    public static class BlobCommand implements Command {
+
+        public byte[] data;
+
+        public BlobCommand() {
+        }
+
+        BlobCommand(int size) {
+            data = new byte[size];
+            Arrays.fill(data, (byte) 1);
+        }
+
+        @Override
+        public boolean isGuaranteed() {
+            return true;
+        }
+    }
+
+    public static void main(String[] args) {
+        OneTrueMessageSerializer.register();
+        Serializer.registerClass(BlobCommand.class);
+
+        RetransmissionScheduler scheduler = new RetransmissionScheduler();
+        GuaranteedRingBuffer steady = new GuaranteedRingBuffer();
+        GuaranteedRingBuffer oversized = new GuaranteedRingBuffer();
+        oversized.add(0, -1, Collections.<Command>singletonList(
+                new BlobCommand(scheduler.getMtuBudget() * 2)));
+
+        int steadySends = 0;
+        int oversizedSends = 0;
+        List<OtmIdCommandListPair> out = new ArrayList<>();
+        for (int tick = 0; tick < TICKS; tick++) {
+            long now = tick * TICK_MILLIS;
+            steady.add(tick, tick - 1, Collections.<Command>singletonList(
+                    new BlobCommand(100)));
+
+            out.clear();
+            scheduler.schedule(steady, now, TIMEOUT, out);
+            int fromSteady = out.size();
+            scheduler.schedule(oversized, now, TIMEOUT, out);
+            steadySends += fromSteady;
+            oversizedSends += out.size() - fromSteady;
+
+            steady.confirm(tick, 0L);
+        }
+
+        // Resent on the first tick at least TIMEOUT after previous send
+        long period = (TIMEOUT + TICK_MILLIS - 1) / TICK_MILLIS;
+        long expected = (TICKS - 1) / period + 1;
+        System.out.println("ticks " + TICKS + "  stream 0 sends "
+                + steadySends + "  oversized stream 1 sends "
+                + oversizedSends + " (expected " + expected + ")");
+        if (steadySends != TICKS || oversizedSends != expected) {
+            throw new IllegalStateException("Check failed");
+        }
+        System.out.println("ok");
+    }
+}
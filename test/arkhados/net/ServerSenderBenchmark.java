@@ -0,0 +1,228 @@
+/*
+ * Copyright (c) 2009-2011 William Linna
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Arkhados' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package arkhados.net;
+
+import arkhados.net.connection.MessageFragmenter;
+import com.jme3.network.Filter;
+import com.jme3.network.Filters;
+import com.jme3.network.HostedConnection;
+import com.jme3.network.Message;
+import com.jme3.network.Server;
+import com.jme3.network.serializing.Serializable;
+import com.jme3.network.serializing.Serializer;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Measures how the cost of one ServerSender tick scales with connection
+ * count. Each tick broadcasts COMMANDS_PER_TICK unreliable commands to
+ * every connection, builds and serializes one OneTrueMessage per
+ * connection and hands the datagrams to a sink that only counts bytes.
+ * <p>
+ * "unicast" is the current path where each message goes straight to its
+ * connection. "filtered" sends each message through
+ * server.broadcast(Filters.in(connection), otm) against a server that tests
+ * the filter on every connection, like UdpKernel.broadcast did before.
+ * <p>
+ * Run with src and jME networking on classpath:
+ * java arkhados.net.ServerSenderBenchmark [connectionCounts...]
+ */
+public class ServerSenderBenchmark {
+
+    private static final int COMMANDS_PER_TICK = 8;
+    private static final int WARMUP_TICKS = 200;
+    private static final int MEASURED_TICKS = 500;
+
+    @Serializable
+    public static class MoveCommand implements Command {
+
+        public int entityId;
+        public float x;
+        public float y;
+        public float z;
+
+        @Override
+        public boolean isGuaranteed() {
+            return false;
+        }
+    }
+
+    private static final MessageFragmenter fragmenter =
+            new MessageFragmenter();
+    private static long bytesSent = 0;
+    private static final Consumer<ByteBuffer> sink =
+            datagram -> bytesSent += datagram.remaining();
+
+    public static void main(String[] args) throws Exception {
+        OneTrueMessageSerializer.register();
+        Serializer.registerClass(MoveCommand.class);
+
+        int[] counts = {16, 64, 256, 1024};
+        if (args.length > 0) {
+            counts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                counts[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        // Let JIT compile both paths before anything is measured
+        run(256, false);
+        run(256, true);
+        bytesSent = 0;
+
+        System.out.println("connections  unicast us/tick  ns/conn"
+                + "  filtered us/tick  ns/conn  bytes/conn");
+        for (int count : counts) {
+            long unicast = run(count, false);
+            long filtered = run(count, true);
+            System.out.printf("%11d  %15.1f  %7d  %16.1f  %7d  %10d%n",
+                    count, unicast / 1000.0, unicast / count,
+                    filtered / 1000.0, filtered / count,
+                    bytesSent / ((WARMUP_TICKS + MEASURED_TICKS) * 2L
+                    * count));
+            bytesSent = 0;
+        }
+    }
+
+    /**
+     * @return average nanoseconds per tick
+     */
+    private static long run(int count, boolean filtered) {
+        List<HostedConnection> connections = new ArrayList<>();
+        Server server = createServer(connections);
+        ServerSender sender = new ServerSender(server);
+        for (int i = 0; i < count; i++) {
+            HostedConnection connection =
+                    createConnection(server, i, filtered);
+            connections.add(connection);
+            sender.addConnection(connection);
+        }
+
+        for (int i = 0; i < WARMUP_TICKS; i++) {
+            tick(sender);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < MEASURED_TICKS; i++) {
+            tick(sender);
+        }
+        return (System.nanoTime() - start) / MEASURED_TICKS;
+    }
+
+    private static void tick(ServerSender sender) {
+        for (int i = 0; i < COMMANDS_PER_TICK; i++) {
+            MoveCommand command = new MoveCommand();
+            command.entityId = i;
+            command.x = i;
+            sender.addCommand(command);
+        }
+        sender.update(0.016f);
+    }
+
+    private static void deliver(Message message) {
+        try {
+            fragmenter.writePooled(message, sink);
+        } catch (IOException ex) {
+            throw new RuntimeException(ex);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Server createServer(List<HostedConnection> connections) {
+        return (Server) Proxy.newProxyInstance(
+                Server.class.getClassLoader(), new Class<?>[]{Server.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "isRunning":
+                        case "hasConnections":
+                            return true;
+                        case "getConnections":
+                            return connections;
+                        case "broadcast":
+                            // Filter is tested against every connection
+                            Filter<Object> filter =
+                                    (Filter<Object>) args[0];
+                            for (HostedConnection c : connections) {
+                                if (filter.apply(c)) {
+                                    deliver((Message) args[1]);
+                                }
+                            }
+                            return null;
+                        default:
+                            throw new UnsupportedOperationException(
+                                    method.getName());
+                    }
+                });
+    }
+
+    private static HostedConnection createConnection(Server server, int id,
+            boolean filtered) {
+        Object[] self = new Object[1];
+        HostedConnection connection = (HostedConnection) Proxy
+                .newProxyInstance(HostedConnection.class.getClassLoader(),
+                        new Class<?>[]{HostedConnection.class},
+                        (proxy, method, args) -> {
+                            switch (method.getName()) {
+                                case "getId":
+                                    return id;
+                                case "getServer":
+                                    return server;
+                                case "hashCode":
+                                    return id;
+                                case "equals":
+                                    return proxy == args[0];
+                                case "toString":
+                                    return "Connection " + id;
+                                case "send":
+                                    Message m = (Message) args[args.length
+                                            - 1];
+                                    if (filtered) {
+                                        server.broadcast(Filters.in(
+                                                (HostedConnection) self[0]),
+                                                m);
+                                    } else {
+                                        deliver(m);
+                                    }
+                                    return null;
+                                default:
+                                    throw new UnsupportedOperationException(
+                                            method.getName());
+                            }
+                        });
+        self[0] = connection;
+        return connection;
+    }
+}
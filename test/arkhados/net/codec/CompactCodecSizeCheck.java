@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2009-2011 William Linna
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Arkhados' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package arkhados.net.codec;
+
+import arkhados.net.Command;
+import arkhados.net.OneTrueMessage;
+import arkhados.net.OneTrueMessageSerializer;
+import arkhados.net.OtmIdCommandListPair;
+import com.jme3.network.serializing.Serializable;
+import com.jme3.network.serializing.Serializer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the wire size of one movement heavy OneTrueMessage written with
+ * OneTrueMessageSerializer and FieldSerializer against the same message
+ * written with CompactOneTrueMessageSerializer and CompactSerializer, and
+ * checks that the compact form reads back to the same values.
+ * <p>
+ * Throws if the compact form is not smaller or does not round trip.
+ * <p>
+ * Run with src and jME networking on classpath:
+ * java arkhados.net.codec.CompactCodecSizeCheck [commandCount]
+ */
+public class CompactCodecSizeCheck {
+
+    @Serializable
+    public static class CompactMove implements Command {
+
+        @Ranged(min = 0, max = 4095)
+        public int entityId;
+        @Quantized(min = -512, max = 512, bits = 16)
+        public float x;
+        @Quantized(min = -512, max = 512, bits = 16)
+        public float z;
+        @Quantized(min = -50, max = 50, bits = 12)
+        public float vx;
+        @Quantized(min = -50, max = 50, bits = 12)
+        public float vz;
+        @Quantized(min = 0, max = 6.2832f, bits = 10)
+        public float heading;
+        public boolean running;
+        public int seq;
+
+        @Override
+        public boolean isGuaranteed() {
+            return false;
+        }
+    }
+
+    @Serializable
+    public static class PlainMove implements Command {
+
+        public int entityId;
+        public float x;
+        public float z;
+        public float vx;
+        public float vz;
+        public float heading;
+        public boolean running;
+        public int seq;
+
+        @Override
+        public boolean isGuaranteed() {
+            return false;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int commandCount = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+
+        CompactSerializer.register(CompactMove.class);
+        Serializer.registerClass(PlainMove.class);
+
+        OneTrueMessage compact = createMessage();
+        OneTrueMessage plain = createMessage();
+        Random random = new Random(3);
+        for (int i = 0; i < commandCount; i++) {
+            CompactMove move = new CompactMove();
+            move.entityId = random.nextInt(4096);
+            move.x = random.nextFloat() * 1000 - 500;
+            move.z = random.nextFloat() * 1000 - 500;
+            move.vx = random.nextFloat() * 10;
+            move.vz = -random.nextFloat() * 10;
+            move.heading = random.nextFloat() * 6;
+            move.running = random.nextBoolean();
+            move.seq = i - 3;
+            compact.getUnreliables().add(move);
+            plain.getUnreliables().add(toPlain(move));
+        }
+        addGuaranteed(compact);
+        addGuaranteed(plain);
+
+        OneTrueMessageSerializer.register();
+        int plainSize = write(plain).position();
+
+        CompactOneTrueMessageSerializer.register();
+        ByteBuffer buffer = write(compact);
+        int compactSize = buffer.position();
+        buffer.flip();
+        OneTrueMessage back =
+                (OneTrueMessage) Serializer.readClassAndObject(buffer);
+
+        System.out.println("commands " + commandCount + "  plain "
+                + plainSize + " bytes  compact " + compactSize + " bytes");
+
+        check(!buffer.hasRemaining(), "trailing bytes after read");
+        check(compactSize < plainSize, "compact form is not smaller");
+        checkEquals(compact, back);
+        System.out.println("round trip ok");
+    }
+
+    private static OneTrueMessage createMessage() {
+        OneTrueMessage otm = new OneTrueMessage(123456);
+        otm.setAck(123400, 123390, 17);
+        otm.setAckEchoMask(0x2fL);
+        otm.setStreamAck(0, 123300, -1L);
+        otm.setStreamAck(3, 123200, 0x5L);
+        return otm;
+    }
+
+    private static void addGuaranteed(OneTrueMessage otm) {
+        List<Command> commands =
+                new ArrayList<>(otm.getUnreliables().subList(0, 2));
+        OtmIdCommandListPair pair =
+                new OtmIdCommandListPair(123450, 123449, commands);
+        pair.setStreamId(5);
+        otm.getGuaranteed().add(pair);
+    }
+
+    private static PlainMove toPlain(CompactMove move) {
+        PlainMove plain = new PlainMove();
+        plain.entityId = move.entityId;
+        plain.x = move.x;
+        plain.z = move.z;
+        plain.vx = move.vx;
+        plain.vz = move.vz;
+        plain.heading = move.heading;
+        plain.running = move.running;
+        plain.seq = move.seq;
+        return plain;
+    }
+
+    private static ByteBuffer write(OneTrueMessage otm) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(65536);
+        Serializer.writeClassAndObject(buffer, otm);
+        return buffer;
+    }
+
+    private static void checkEquals(OneTrueMessage sent,
+            OneTrueMessage received) {
+        check(sent.getOrderNum() == received.getOrderNum(), "orderNum");
+        check(sent.getAckEchoOtmId() == received.getAckEchoOtmId(),
+                "ackEchoOtmId");
+        check(sent.getAckSnapshotOtmId() == received.getAckSnapshotOtmId(),
+                "ackSnapshotOtmId");
+        check(sent.getAckDelay() == received.getAckDelay(), "ackDelay");
+        check(sent.getAckEchoMask() == received.getAckEchoMask(),
+                "ackEchoMask");
+        check(sent.getAckStreams() == received.getAckStreams(),
+                "ackStreams");
+        for (int stream : new int[]{0, 3}) {
+            check(sent.getAckConfirmedOtmId(stream)
+                    == received.getAckConfirmedOtmId(stream),
+                    "ackConfirmedOtmId " + stream);
+            check(sent.getAckReceivedMask(stream)
+                    == received.getAckReceivedMask(stream),
+                    "ackReceivedMask " + stream);
+        }
+
+        OtmIdCommandListPair pair = received.getGuaranteed().get(0);
+        check(pair.getOtmId() == 123450 && pair.getPreviousOtmId() == 123449
+                && pair.getStreamId() == 5
+                && pair.getCommandList().size() == 2, "guaranteed pair");
+
+        List<Command> expected = sent.getUnreliables();
+        List<Command> actual = received.getUnreliables();
+        check(expected.size() == actual.size(), "unreliable count");
+        for (int i = 0; i < expected.size(); i++) {
+            CompactMove a = (CompactMove) expected.get(i);
+            CompactMove b = (CompactMove) actual.get(i);
+            check(a.entityId == b.entityId && a.running == b.running
+                    && a.seq == b.seq, "command " + i);
+            // Quantization error is at most half a step
+            check(Math.abs(a.x - b.x) <= 1024f / 65535
+                    && Math.abs(a.z - b.z) <= 1024f / 65535
+                    && Math.abs(a.vx - b.vx) <= 100f / 4095
+                    && Math.abs(a.vz - b.vz) <= 100f / 4095
+                    && Math.abs(a.heading - b.heading) <= 6.2832f / 1023,
+                    "quantized fields of command " + i);
+        }
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            throw new IllegalStateException("Check failed: " + what);
+        }
+    }
+}
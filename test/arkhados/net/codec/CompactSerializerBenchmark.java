@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2009-2011 William Linna
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Arkhados' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package arkhados.net.codec;
+
+import arkhados.net.Command;
+import com.jme3.network.serializing.Serializable;
+import com.jme3.network.serializing.Serializer;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Compares throughput of the serializer that SerializerProcessor generates
+ * for a command against reflective CompactSerializer for the same command.
+ * Each operation writes one command and reads it back.
+ * <p>
+ * The processor must run when this file is compiled, which it does when
+ * src is on the processor path. Run with src and jME networking on
+ * classpath: java arkhados.net.codec.CompactSerializerBenchmark
+ */
+public class CompactSerializerBenchmark {
+
+    private static final int COMMANDS = 1024;
+    private static final int WARMUP_ROUNDS = 2000;
+    private static final int MEASURED_ROUNDS = 2000;
+
+    @Serializable
+    public static class BenchMove implements Command {
+
+        @Ranged(min = 0, max = 4095)
+        public int entityId;
+        @Quantized(min = -512, max = 512, bits = 16)
+        public float x;
+        @Quantized(min = -512, max = 512, bits = 16)
+        public float z;
+        @Quantized(min = -50, max = 50, bits = 12)
+        public float vx;
+        @Quantized(min = -50, max = 50, bits = 12)
+        public float vz;
+        public boolean running;
+        public int seq;
+
+        @Override
+        public boolean isGuaranteed() {
+            return false;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String name = BenchMove.class.getName();
+        int dot = name.lastIndexOf('.') + 1;
+        name = name.substring(0, dot)
+                + GeneratedNames.serializerOf(name.substring(dot));
+        Class<?> type;
+        try {
+            type = Class.forName(name);
+        } catch (ClassNotFoundException ex) {
+            System.out.println(name + " was not generated. Compile with"
+                    + " arkhados.net.codec.SerializerProcessor.");
+            return;
+        }
+
+        Serializer generated =
+                (Serializer) type.getDeclaredConstructor().newInstance();
+        Serializer reflective = new CompactSerializer(BenchMove.class);
+
+        BenchMove[] commands = new BenchMove[COMMANDS];
+        Random random = new Random(7);
+        for (int i = 0; i < COMMANDS; i++) {
+            BenchMove move = new BenchMove();
+            move.entityId = random.nextInt(4096);
+            move.x = random.nextFloat() * 1000 - 500;
+            move.z = random.nextFloat() * 1000 - 500;
+            move.vx = random.nextFloat() * 100 - 50;
+            move.vz = random.nextFloat() * 100 - 50;
+            move.running = random.nextBoolean();
+            move.seq = i;
+            commands[i] = move;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(COMMANDS * 32);
+
+        // Let JIT compile both paths before anything is measured
+        run(generated, commands, buffer, WARMUP_ROUNDS);
+        run(reflective, commands, buffer, WARMUP_ROUNDS);
+
+        long generatedNanos = run(generated, commands, buffer,
+                MEASURED_ROUNDS);
+        long reflectiveNanos = run(reflective, commands, buffer,
+                MEASURED_ROUNDS);
+        long ops = (long) MEASURED_ROUNDS * COMMANDS;
+        System.out.printf("generated   %6.1f ns/op  %6.2f Mops/s%n",
+                (double) generatedNanos / ops, ops * 1e3 / generatedNanos);
+        System.out.printf("reflective  %6.1f ns/op  %6.2f Mops/s%n",
+                (double) reflectiveNanos / ops, ops * 1e3 / reflectiveNanos);
+    }
+
+    /**
+     * @return nanoseconds spent
+     */
+    private static long run(Serializer serializer, BenchMove[] commands,
+            ByteBuffer buffer, int rounds) throws Exception {
+        long checksum = 0;
+        long start = System.nanoTime();
+        for (int round = 0; round < rounds; round++) {
+            buffer.clear();
+            for (BenchMove command : commands) {
+                serializer.writeObject(buffer, command);
+            }
+            buffer.flip();
+            for (int i = 0; i < commands.length; i++) {
+                BenchMove move = serializer.readObject(buffer,
+                        BenchMove.class);
+                checksum += move.seq;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (checksum != (long) rounds * commands.length
+                * (commands.length - 1) / 2) {
+            throw new IllegalStateException("Commands did not round trip");
+        }
+        return elapsed;
+    }
+}
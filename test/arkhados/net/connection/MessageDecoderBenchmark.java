@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2009-2011 William Linna
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are
+ * met:
+ *
+ * * Redistributions of source code must retain the above copyright
+ *   notice, this list of conditions and the following disclaimer.
+ *
+ * * Redistributions in binary form must reproduce the above copyright
+ *   notice, this list of conditions and the following disclaimer in the
+ *   documentation and/or other materials provided with the distribution.
+ *
+ * * Neither the name of 'Arkhados' nor the names of its contributors
+ *   may be used to endorse or promote products derived from this software
+ *   without specific prior written permission.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS
+ * "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED
+ * TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package arkhados.net.connection;
+
+import arkhados.net.Command;
+import arkhados.net.OneTrueMessage;
+import arkhados.net.OneTrueMessageSerializer;
+import com.jme3.network.Message;
+import com.jme3.network.base.MessageProtocol;
+import com.jme3.network.serializing.Serializable;
+import com.jme3.network.serializing.Serializer;
+import java.nio.ByteBuffer;
+
+/**
+ * Measures the cost of decoding one received datagram that holds two small
+ * OneTrueMessages.
+ * <p>
+ * "MessageProtocol" is how MyKernelAdapter decoded unreliable datagrams
+ * before MessageDecoder: the datagram is wrapped in a ByteBuffer and fed to
+ * a new MessageProtocol, which copies messages into its own buffer and
+ * queues them in a LinkedList. "MessageDecoder" is the current path, where
+ * the shard's decoder reads messages in place from the pooled direct buffer
+ * that NioUdpKernel received into.
+ * <p>
+ * Run with src and jME networking on classpath:
+ * java arkhados.net.connection.MessageDecoderBenchmark
+ */
+public class MessageDecoderBenchmark {
+
+    private static final int WARMUP_PACKETS = 2_000_000;
+    private static final int MEASURED_PACKETS = 2_000_000;
+    private static final int ROUNDS = 5;
+
+    @Serializable
+    public static class MoveCommand implements Command {
+
+        public int entityId;
+        public float x;
+        public float z;
+
+        @Override
+        public boolean isGuaranteed() {
+            return false;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        OneTrueMessageSerializer.register();
+        Serializer.registerClass(MoveCommand.class);
+
+        ByteBuffer datagram = ByteBuffer.allocate(1200);
+        for (int i = 0; i < 2; i++) {
+            OneTrueMessage otm = new OneTrueMessage(1000 + i);
+            otm.setAck(990 + i, 980, 5);
+            MoveCommand move = new MoveCommand();
+            move.entityId = i;
+            move.x = 1.5f;
+            otm.getUnreliables().add(move);
+            ByteBuffer framed = MessageProtocol.messageToBuffer(otm, null);
+            datagram.put(framed);
+        }
+        datagram.flip();
+
+        byte[] bytes = new byte[datagram.remaining()];
+        datagram.get(bytes);
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes).flip();
+
+        // Let JIT compile both paths before anything is measured
+        protocol(bytes, WARMUP_PACKETS);
+        decoder(direct, WARMUP_PACKETS);
+
+        // Paths alternate so that noise hits both, best round is reported
+        long before = Long.MAX_VALUE;
+        long after = Long.MAX_VALUE;
+        for (int i = 0; i < ROUNDS; i++) {
+            before = Math.min(before, protocol(bytes, MEASURED_PACKETS));
+            after = Math.min(after, decoder(direct, MEASURED_PACKETS));
+        }
+        System.out.printf("datagram %d bytes, 2 messages, best of %d%n",
+                bytes.length, ROUNDS);
+        System.out.printf("MessageProtocol  %6.1f ns/packet%n",
+                (double) before / MEASURED_PACKETS);
+        System.out.printf("MessageDecoder   %6.1f ns/packet%n",
+                (double) after / MEASURED_PACKETS);
+    }
+
+    /**
+     * @return nanoseconds spent
+     */
+    private static long protocol(byte[] bytes, int packets) {
+        int messages = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < packets; i++) {
+            MessageProtocol protocol = new MessageProtocol();
+            protocol.addBuffer(ByteBuffer.wrap(bytes));
+            Message m;
+            while ((m = protocol.getMessage()) != null) {
+                messages += ((OneTrueMessage) m).getOrderNum() & 1;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        check(messages, packets);
+        return elapsed;
+    }
+
+    /**
+     * @return nanoseconds spent
+     */
+    private static long decoder(ByteBuffer direct, int packets)
+            throws Exception {
+        MessageDecoder decoder = new MessageDecoder();
+        int messages = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < packets; i++) {
+            direct.rewind();
+            decoder.reset(direct);
+            Message m;
+            while ((m = decoder.next()) != null) {
+                messages += ((OneTrueMessage) m).getOrderNum() & 1;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        check(messages, packets);
+        return elapsed;
+    }
+
+    private static void check(int messages, int packets) {
+        // Only the second message of each packet has an odd order number
+        if (messages != packets) {
+            throw new IllegalStateException("Decoded " + messages
+                    + " odd messages from " + packets + " packets");
+        }
+    }
+}